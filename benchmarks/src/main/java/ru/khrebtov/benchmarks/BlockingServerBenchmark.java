@@ -0,0 +1,169 @@
+package ru.khrebtov.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.khrebtov.server.ConnectionExecutor;
+import ru.khrebtov.server.Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Server} on its blocking protocol: upload / download throughput and the latency
+ * of a small command (size). One logged in connection per benchmark thread.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+public class BlockingServerBenchmark {
+    private static final String USER = "bench";
+    private static final String PASSWORD = "bench-password";
+    private static int port;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void upload(Transfer connection, Transferred transferred) throws IOException {
+        connection.upload();
+        transferred.bytes += connection.content.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void download(Transfer connection, Transferred transferred) throws IOException {
+        DataInputStream in = connection.in;
+        connection.call("download", connection.name);
+        long left = in.readLong();
+        transferred.bytes += left;
+        while (left > 0) {
+            int read = in.read(connection.buffer, 0, (int) Math.min(connection.buffer.length, left));
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            left -= read;
+        }
+        connection.expect("OK");
+        in.readUTF(); // command echo
+    }
+
+    /**
+     * Does not depend on the file size, so it runs once rather than for every sizeKb
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long size(Connection connection) throws IOException {
+        connection.call("size", connection.name);
+        long size = connection.in.readLong();
+        connection.in.readUTF(); // command echo
+        return size;
+    }
+
+    /**
+     * A logged in connection and a file of {@link #sizeKb()} uploaded through it
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        byte[] content;
+        String name;
+        Socket socket;
+        DataOutputStream out;
+        DataInputStream in;
+        final byte[] buffer = new byte[64 * 1024];
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            synchronized (BlockingServerBenchmark.class) {
+                if (port == 0) {
+                    port = Servers.start("blocking-server",
+                            p -> new Server(p, ConnectionExecutor.fromSystemProperties()));
+                }
+            }
+            content = Servers.content(sizeKb() * 1024);
+            name = "blocking-" + sizeKb() + "kb-" + Thread.currentThread().getId() + ".bin";
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+            // taken by an earlier run - the login below still works
+            call("register", USER, PASSWORD);
+            in.readUTF();
+            in.readUTF(); // command echo
+            call("login", USER, PASSWORD);
+            if (!"OK".equals(in.readUTF())) {
+                throw new IOException("Login failed");
+            }
+            in.readUTF(); // token
+            in.readUTF(); // command echo
+            upload();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            out.writeUTF("exit");
+            out.flush();
+            socket.close();
+        }
+
+        int sizeKb() {
+            return 64;
+        }
+
+        void upload() throws IOException {
+            out.writeUTF("upload");
+            out.writeUTF(name);
+            out.writeLong(content.length);
+            out.write(content);
+            out.flush();
+            expect("OK");
+            in.readUTF(); // command echo
+        }
+
+        void call(String command, String... args) throws IOException {
+            out.writeUTF(command);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+        }
+
+        void expect(String status) throws IOException {
+            String actual = in.readUTF();
+            if (!status.equals(actual)) {
+                throw new IOException("Expected " + status + ", got " + actual);
+            }
+        }
+    }
+
+    /**
+     * A connection for each file size
+     */
+    @State(Scope.Thread)
+    public static class Transfer extends Connection {
+        @Param({"64", "1024", "16384"})
+        public int sizeKb;
+
+        @Override
+        int sizeKb() {
+            return sizeKb;
+        }
+    }
+}
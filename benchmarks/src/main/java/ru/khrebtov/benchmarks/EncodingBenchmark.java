@@ -0,0 +1,91 @@
+package ru.khrebtov.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.khrebtov.netty.protocol.FileCommand;
+import ru.khrebtov.netty.protocol.Frame;
+import ru.khrebtov.netty.protocol.FrameDecoder;
+import ru.khrebtov.netty.protocol.FrameEncoder;
+import ru.khrebtov.nio.NioTelnetServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one reply into bytes, without the network: the NIO server's sendMessage,
+ * the Netty frame encoder and decoder, and writeUTF of the blocking server for comparison.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodingBenchmark {
+    private static final String MESSAGE = "directory was deleted\n";
+
+    private final Path dir = Path.of("server", "some", "directory").toAbsolutePath();
+    private final Frame frame = new Frame(FileCommand.OK, 1024, "some/directory/file.txt");
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream data = new DataOutputStream(bytes);
+    private EmbeddedChannel encoder;
+    private EmbeddedChannel decoder;
+    private ByteBuf encoded;
+
+    @Setup
+    public void setUp() {
+        encoder = new EmbeddedChannel(new FrameEncoder());
+        decoder = new EmbeddedChannel(new FrameDecoder());
+        encoder.writeOutbound(frame);
+        encoded = encoder.readOutbound();
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoded.release();
+        encoder.finishAndReleaseAll();
+        decoder.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public ByteBuffer nioSendMessage() {
+        return NioTelnetServer.encodeMessage(dir, MESSAGE);
+    }
+
+    @Benchmark
+    public int nettyEncodeFrame() {
+        encoder.writeOutbound(frame);
+        ByteBuf buf = encoder.readOutbound();
+        int length = buf.readableBytes();
+        buf.release();
+        return length;
+    }
+
+    @Benchmark
+    public Object nettyDecodeFrame() {
+        decoder.writeInbound(encoded.retainedDuplicate());
+        return decoder.readInbound();
+    }
+
+    @Benchmark
+    public int blockingWriteUtf() throws IOException {
+        bytes.reset();
+        data.writeUTF(MESSAGE);
+        return bytes.size();
+    }
+}
@@ -0,0 +1,162 @@
+package ru.khrebtov.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.khrebtov.netty.NettyBaseServer;
+import ru.khrebtov.netty.Transport;
+import ru.khrebtov.netty.protocol.FileCommand;
+import ru.khrebtov.netty.protocol.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link NettyBaseServer} on its binary frame protocol: upload / download throughput
+ * and the latency of LIST, on both transports (epoll needs Linux).
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+public class NettyServerBenchmark {
+    private static final String DIR = "bench-netty";
+    private static int port;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void upload(Transfer connection, Transferred transferred) throws IOException {
+        connection.upload();
+        transferred.bytes += connection.content.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void download(Transfer connection, Transferred transferred) throws IOException {
+        connection.writeFrame(FileCommand.DOWNLOAD, 0, connection.name);
+        connection.out.flush();
+        long left = connection.expect(FileCommand.FILE).getSize();
+        transferred.bytes += left;
+        while (left > 0) {
+            int read = connection.in.read(connection.buffer, 0, (int) Math.min(connection.buffer.length, left));
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            left -= read;
+        }
+    }
+
+    /**
+     * Does not depend on the file size, so it runs once per transport rather than for every sizeKb
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Frame list(Connection connection) throws IOException {
+        connection.writeFrame(FileCommand.LIST, 0, DIR);
+        connection.out.flush();
+        return connection.expect(FileCommand.OK);
+    }
+
+    /**
+     * A connection to the server on the transport and a file of {@link #sizeKb()} uploaded through it
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"nio", "epoll"})
+        public String transport;
+
+        byte[] content;
+        String name;
+        Socket socket;
+        DataOutputStream out;
+        DataInputStream in;
+        final byte[] buffer = new byte[64 * 1024];
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            synchronized (NettyServerBenchmark.class) {
+                if (port == 0) {
+                    Servers.file(DIR, ".keep", new byte[0]);
+                    Transport chosen = Transport.valueOf(transport.toUpperCase());
+                    port = Servers.start("netty-server", p -> new NettyBaseServer(p, chosen));
+                }
+            }
+            content = Servers.content(sizeKb() * 1024);
+            name = DIR + "/" + sizeKb() + "kb-" + Thread.currentThread().getId() + ".bin";
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            upload();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        int sizeKb() {
+            return 64;
+        }
+
+        void upload() throws IOException {
+            writeFrame(FileCommand.UPLOAD, content.length, name);
+            out.write(content);
+            out.flush();
+            expect(FileCommand.OK);
+        }
+
+        void writeFrame(FileCommand command, long size, String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(Frame.HEADER_LENGTH + bytes.length);
+            out.writeByte(command.code());
+            out.writeLong(size);
+            out.write(bytes);
+        }
+
+        Frame expect(FileCommand command) throws IOException {
+            int length = in.readInt();
+            FileCommand actual = FileCommand.of(in.readByte());
+            long size = in.readLong();
+            byte[] text = new byte[length - Frame.HEADER_LENGTH];
+            in.readFully(text);
+            Frame frame = new Frame(actual, size, new String(text, StandardCharsets.UTF_8));
+            if (actual != command) {
+                throw new IOException("Expected " + command + ", got " + frame);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * A connection for each file size
+     */
+    @State(Scope.Thread)
+    public static class Transfer extends Connection {
+        @Param({"64", "1024", "16384"})
+        public int sizeKb;
+
+        @Override
+        int sizeKb() {
+            return sizeKb;
+        }
+    }
+}
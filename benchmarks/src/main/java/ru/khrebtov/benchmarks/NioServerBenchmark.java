@@ -0,0 +1,155 @@
+package ru.khrebtov.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.khrebtov.nio.NioTelnetServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link NioTelnetServer} on its text protocol: download throughput with cat
+ * (the server has no upload command) and the latency of ls.
+ * The files are written before the server starts, so its first scan already has them.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+public class NioServerBenchmark {
+    private static final String DIR = "bench-nio";
+    private static final int[] SIZES_KB = {64, 1024, 16384};
+    private static int port;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void download(Transfer connection, Transferred transferred) throws IOException {
+        connection.out.write(connection.cat);
+        connection.out.flush();
+        byte[] buffer = connection.buffer;
+        if (connection.in.readNBytes(buffer, 0, buffer.length) != buffer.length) {
+            throw new IOException("Connection closed");
+        }
+        transferred.bytes += connection.sizeKb * 1024;
+    }
+
+    /**
+     * Does not depend on the file size, so it runs once rather than for every sizeKb
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int ls(Connection connection) throws IOException {
+        connection.send("ls");
+        return connection.readUntil("\\: \n \n").length();
+    }
+
+    /**
+     * A connection in the benchmark directory
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        Socket socket;
+        OutputStream out;
+        InputStream in;
+        // every reply starts with it: current directory, "\: ", newline
+        int promptLength;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            synchronized (NioServerBenchmark.class) {
+                if (port == 0) {
+                    for (int size : SIZES_KB) {
+                        Servers.file(DIR, size + "kb.bin", Servers.content(size * 1024));
+                    }
+                    port = Servers.start("nio-server", p -> new NioTelnetServer(p, 2, 4));
+                }
+            }
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            readUntil("\\: ");
+            send("cd " + DIR);
+            promptLength = readUntil("\\: \n \n").length() - 2;
+            opened();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            send("exit");
+            socket.close();
+        }
+
+        /**
+         * Called at the end of the setup, the prompt length is known by then
+         */
+        void opened() {
+        }
+
+        void send(String command) throws IOException {
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String readUntil(String end) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (!endsWith(sb, end)) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+                sb.append((char) b);
+            }
+            return sb.toString();
+        }
+
+        private static boolean endsWith(StringBuilder sb, String end) {
+            int offset = sb.length() - end.length();
+            if (offset < 0) {
+                return false;
+            }
+            for (int i = 0; i < end.length(); i++) {
+                if (sb.charAt(offset + i) != end.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A connection for each file size
+     */
+    @State(Scope.Thread)
+    public static class Transfer extends Connection {
+        @Param({"64", "1024", "16384"})
+        public int sizeKb;
+
+        byte[] cat;
+        byte[] buffer;
+
+        @Override
+        void opened() {
+            cat = ("cat " + sizeKb + "kb.bin\n").getBytes(StandardCharsets.UTF_8);
+            // prompt, file, newline, prompt, " \n"
+            buffer = new byte[2 * promptLength + sizeKb * 1024 + 3];
+        }
+    }
+}
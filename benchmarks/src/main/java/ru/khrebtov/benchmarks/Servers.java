@@ -0,0 +1,77 @@
+package ru.khrebtov.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Starts servers in the benchmark JVM. Servers block in their constructors and never stop,
+ * so each runs on a daemon thread and goes away with the forked JVM.
+ */
+final class Servers {
+    // a server that scans a large tree on start takes a while to accept
+    private static final long START_TIMEOUT_MILLIS = 60_000;
+
+    interface ServerMain {
+        void run(int port) throws Exception;
+    }
+
+    private Servers() {
+    }
+
+    /**
+     * @return port the server accepts on
+     */
+    static int start(String name, ServerMain server) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        int bound = port;
+        Thread thread = new Thread(() -> {
+            try {
+                server.run(bound);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return port;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !thread.isAlive()) {
+                    throw new IOException(name + " did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Incompressible content, so no layer gets an easy ride
+     */
+    static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the file under ./server unless it is already there with this size
+     */
+    static Path file(String dir, String name, byte[] content) throws IOException {
+        Path file = Path.of("server", dir, name);
+        if (!Files.exists(file) || Files.size(file) != content.length) {
+            Files.createDirectories(file.getParent());
+            Files.write(file, content);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,120 @@
+package ru.khrebtov.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.khrebtov.netty.handlers.ByteBufInputHandler;
+import ru.khrebtov.netty.handlers.OutputHandler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text in and out of the Netty pipeline: {@link ByteBufInputHandler} and {@link OutputHandler}
+ * against handlers working the way they did before - a char per byte into a StringBuilder,
+ * getBytes copied into a buffer of the default size. Run with {@code -prof gc} for the bytes
+ * allocated per call.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TextCodecBenchmark {
+    private static final String MESSAGE = "ls some/directory/файл.txt\n";
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private EmbeddedChannel input;
+    private EmbeddedChannel output;
+    private EmbeddedChannel charInput;
+    private EmbeddedChannel bytesOutput;
+    private ByteBuf encoded;
+
+    @Setup
+    public void setUp() {
+        input = new EmbeddedChannel(new ByteBufInputHandler());
+        output = new EmbeddedChannel(new OutputHandler());
+        charInput = new EmbeddedChannel(new CharPerByteInput());
+        bytesOutput = new EmbeddedChannel(new GetBytesOutput());
+        encoded = alloc.directBuffer();
+        encoded.writeCharSequence(MESSAGE, StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoded.release();
+        input.finishAndReleaseAll();
+        output.finishAndReleaseAll();
+        charInput.finishAndReleaseAll();
+        bytesOutput.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public Object decodeCharPerByte() {
+        charInput.writeInbound(encoded.retainedDuplicate());
+        return charInput.readInbound();
+    }
+
+    @Benchmark
+    public Object decodeHandler() {
+        input.writeInbound(encoded.retainedDuplicate());
+        return input.readInbound();
+    }
+
+    @Benchmark
+    public int encodeGetBytes() {
+        return encode(bytesOutput);
+    }
+
+    @Benchmark
+    public int encodeHandler() {
+        return encode(output);
+    }
+
+    private static int encode(EmbeddedChannel channel) {
+        channel.writeOutbound(MESSAGE);
+        ByteBuf buf = channel.readOutbound();
+        int length = buf.readableBytes();
+        buf.release();
+        return length;
+    }
+
+    private static class CharPerByteInput extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            StringBuilder sb = new StringBuilder();
+            while (buf.isReadable()) {
+                sb.append((char) buf.readByte());
+            }
+            buf.release();
+            ctx.fireChannelRead(sb.toString());
+        }
+    }
+
+    private static class GetBytesOutput extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ByteBuf buf = ctx.alloc().directBuffer();
+            buf.writeBytes(String.valueOf(msg).getBytes(StandardCharsets.UTF_8));
+            ctx.write(buf, promise);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ru.khrebtov.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login with a password or with a session token.
+ * <ul>
+ * <li>a login returns a random token, a reconnecting client presents it and no hash is computed;</li>
+ * <li>a password verified with PBKDF2 is remembered for a while as a salted SHA-256,
+ * repeated logins with it skip the key derivation;</li>
+ * <li>at most one key derivation per core runs at a time, a login or a registration that waits
+ * too long for its turn is answered BUSY instead of queueing up CPU work.</li>
+ * </ul>
+ * Tokens and remembered passwords live only in memory, in bounded caches with expiry.
+ */
+public class Authenticator {
+    public enum Result {OK, WRONG, BUSY}
+
+    private static final long KDF_WAIT_MILLIS = 2000;
+    private static final int TOKEN_LENGTH = 32;
+
+    private final UserStore users;
+    private final ExpiringCache<String, String> sessions;
+    private final ExpiringCache<String, byte[]> verified;
+    private final Semaphore kdfPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Limits and lifetimes from -Dcloud.auth.sessions, -Dcloud.auth.session-ttl (minutes)
+     * and -Dcloud.auth.credential-ttl (minutes)
+     */
+    public Authenticator(UserStore users) {
+        this(users, Integer.getInteger("cloud.auth.sessions", 100_000),
+                TimeUnit.MINUTES.toMillis(Long.getLong("cloud.auth.session-ttl", 12 * 60)),
+                TimeUnit.MINUTES.toMillis(Long.getLong("cloud.auth.credential-ttl", 15)));
+    }
+
+    public Authenticator(UserStore users, int maxSessions, long sessionTtlMillis, long credentialTtlMillis) {
+        this.users = users;
+        this.sessions = new ExpiringCache<>(maxSessions, sessionTtlMillis);
+        this.verified = new ExpiringCache<>(maxSessions, credentialTtlMillis);
+    }
+
+    /**
+     * Takes a turn of the key derivation like a login, a flood of registrations can not starve logins
+     * @return WRONG if the name is taken or not allowed, BUSY if the turn did not come in time
+     */
+    public Result register(String name, String password) throws IOException, InterruptedException {
+        if (!users.isAvailable(name)) {
+            return Result.WRONG;
+        }
+        if (!kdfPermits.tryAcquire(KDF_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            return Result.BUSY;
+        }
+        try {
+            return users.register(name, password) ? Result.OK : Result.WRONG;
+        } finally {
+            kdfPermits.release();
+        }
+    }
+
+    public Result login(String name, String password) throws InterruptedException {
+        byte[] salt = users.salt(name);
+        if (salt == null) {
+            return Result.WRONG;
+        }
+        byte[] quick = quickHash(salt, password);
+        byte[] remembered = verified.get(name);
+        if (remembered != null && MessageDigest.isEqual(quick, remembered)) {
+            return Result.OK;
+        }
+        if (!kdfPermits.tryAcquire(KDF_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            return Result.BUSY;
+        }
+        try {
+            if (!users.verify(name, password)) {
+                return Result.WRONG;
+            }
+        } finally {
+            kdfPermits.release();
+        }
+        verified.put(name, quick);
+        return Result.OK;
+    }
+
+    /**
+     * New session for a logged in user
+     */
+    public String createToken(String name) {
+        byte[] bytes = new byte[TOKEN_LENGTH];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, name);
+        return token;
+    }
+
+    /**
+     * @return user of the session, null if the token is unknown or expired
+     */
+    public String resume(String token) {
+        return sessions.get(token);
+    }
+
+    public void logout(String token) {
+        sessions.remove(token);
+    }
+
+    private static byte[] quickHash(byte[] salt, String password) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(salt);
+            sha256.update(password.getBytes(StandardCharsets.UTF_8));
+            return sha256.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
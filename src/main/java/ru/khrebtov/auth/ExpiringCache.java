@@ -0,0 +1,59 @@
+package ru.khrebtov.auth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU map whose entries expire a fixed time after they were put
+ */
+public class ExpiringCache<K, V> {
+    private final long ttlMillis;
+    private final Map<K, Timed<V>> entries;
+
+    public ExpiringCache(int capacity, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Timed<V>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Timed<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * @return the value or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        Timed<V> timed = entries.get(key);
+        if (timed == null) {
+            return null;
+        }
+        if (timed.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return timed.value;
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Timed<V> {
+        private final V value;
+        private final long expires;
+
+        private Timed(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
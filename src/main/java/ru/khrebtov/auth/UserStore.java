@@ -0,0 +1,135 @@
+package ru.khrebtov.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Users and their salted PBKDF2 password hashes in a properties file:
+ * {@code name=iterations:salt:hash}, salt and hash in Base64.
+ * Reads do not wait for a registration: the key derivation runs outside the lock,
+ * only the update of the users and the save of the file are under it.
+ */
+public class UserStore {
+    // in the storage root, it holds the user directories from then on
+    public static final String FILE = ".users";
+    public static final int ITERATIONS = 210_000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final Path file;
+    private final Properties users = new Properties();
+    private final SecureRandom random = new SecureRandom();
+
+    public UserStore(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                users.load(in);
+            }
+        }
+    }
+
+    /**
+     * The servers without a login serve the whole storage root: they must not run on a root
+     * where users keep their files, anyone could read, change and watch them
+     * @throws IOException if the root has users
+     */
+    public static void checkNoUsers(Path root) throws IOException {
+        if (Files.exists(root.resolve(FILE))) {
+            throw new IOException("Storage " + root.toAbsolutePath() + " has users, it is served with a login only");
+        }
+    }
+
+    public static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    /**
+     * Cheap check before a registration, the name may still be taken by the time it completes
+     */
+    public boolean isAvailable(String name) {
+        return isValidName(name) && !users.containsKey(name);
+    }
+
+    /**
+     * Runs the key derivation, tens of milliseconds of CPU on purpose
+     * @return false if the name is taken or not allowed
+     */
+    public boolean register(String name, String password) throws IOException {
+        if (!isAvailable(name)) {
+            return false;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        String record = ITERATIONS + ":" + base64.encodeToString(salt) + ":"
+                + base64.encodeToString(hash(password, salt, ITERATIONS));
+        synchronized (this) {
+            if (users.containsKey(name)) {
+                return false;
+            }
+            users.setProperty(name, record);
+            try {
+                save();
+            } catch (IOException e) {
+                users.remove(name);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the key derivation, tens of milliseconds of CPU on purpose
+     */
+    public boolean verify(String name, String password) {
+        String record = users.getProperty(name);
+        if (record == null) {
+            return false;
+        }
+        String[] parts = record.split(":");
+        Base64.Decoder base64 = Base64.getDecoder();
+        byte[] expected = base64.decode(parts[2]);
+        byte[] actual = hash(password, base64.decode(parts[1]), Integer.parseInt(parts[0]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Salt of the user, null if there is no such user
+     */
+    public byte[] salt(String name) {
+        String record = users.getProperty(name);
+        return record == null ? null : Base64.getDecoder().decode(record.split(":")[1]);
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void save() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            users.store(out, null);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
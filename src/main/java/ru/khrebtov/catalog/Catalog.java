@@ -0,0 +1,507 @@
+package ru.khrebtov.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent metadata of the storage tree, so a restarted server knows the tree without walking it.
+ * <p>
+ * Two files in the catalog directory:
+ * <ul>
+ *     <li>catalog.snapshot - all records sorted by path followed by an array of their offsets
+ *     and the generation of the snapshot, memory-mapped, a lookup is a binary search over the offsets;</li>
+ *     <li>catalog.log - the generation of the snapshot it applies to, then every change since
+ *     that snapshot appended as {@code [int length][int crc32][op][record]}, also kept in memory as the tail.</li>
+ * </ul>
+ * The log is flushed to the disk once a second and folded into a new snapshot when it grows
+ * past {@code cloud.catalog.compact-bytes} and half of the snapshot. On open the log is replayed,
+ * a torn or corrupt record at its end (a crash in the middle of a write) is cut off.
+ * A crash after a new snapshot is moved in and before the log is emptied leaves a log of the
+ * previous generation, it is dropped on open: after {@link #rewrite} it could bring back
+ * paths the new snapshot no longer has. A catalog without generations reads as generation 0.
+ * <p>
+ * One process owns the catalog, a second one gets an IOException from the constructor.
+ */
+public class Catalog implements Closeable {
+    public static final String DIR = ".catalog";
+    private static final String LOG = "catalog.log";
+    private static final String SNAPSHOT = "catalog.snapshot";
+    private static final String LOCK = "lock";
+    private static final long MAGIC = 0x434154414c4f4732L; // CATALOG2
+    // trailer: [int index offset][int count][long generation][long magic]
+    private static final int TRAILER = 24;
+    // before generations: [int index offset][int count][long magic]
+    private static final long MAGIC_V1 = 0x434154414c4f4731L; // CATALOG1
+    private static final int TRAILER_V1 = 16;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // first record of the log
+    private static final byte GENERATION = 3;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final long COMPACT_BYTES = Long.getLong("cloud.catalog.compact-bytes", 16 << 20);
+    private static final long COMPACT_CHECK_SECONDS = 10;
+
+    private final Path dir;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final FileChannel log;
+    private final ScheduledExecutorService background;
+    // changes since the snapshot, null value for a deleted path
+    private final NavigableMap<String, FileRecord> tail = new TreeMap<>();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer snapshot;
+    private int count;
+    private int indexOffset;
+    private long generation;
+    private boolean dirty;
+
+    /**
+     * @param dir catalog directory, created if missing
+     */
+    public Catalog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Catalog " + dir + " is used by another process");
+        }
+        lock = acquired;
+        mapSnapshot();
+        log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "catalog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(this::sync, 1, 1, TimeUnit.SECONDS);
+        background.scheduleWithFixedDelay(this::compactIfNeeded,
+                COMPACT_CHECK_SECONDS, COMPACT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The catalog of a storage root, null when another server holds it and the tree has to be scanned
+     */
+    public static Catalog of(Path root) {
+        try {
+            return new Catalog(root.resolve(DIR));
+        } catch (IOException e) {
+            System.out.println("Catalog is not used: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0 && tail.isEmpty();
+    }
+
+    public synchronized void put(FileRecord record) throws IOException {
+        append(PUT, record.getPath(), record);
+        tail.put(record.getPath(), record);
+    }
+
+    public synchronized void delete(String path) throws IOException {
+        append(DELETE, path, null);
+        tail.put(path, null);
+    }
+
+    /**
+     * @return null if the path is not in the catalog
+     */
+    public synchronized FileRecord get(String path) {
+        if (tail.containsKey(path)) {
+            return tail.get(path);
+        }
+        int i = lowerBound(path);
+        return i < count && pathAt(i).equals(path) ? recordAt(i) : null;
+    }
+
+    /**
+     * Entries right in the directory sorted by name, null if there is no such directory.
+     * Descendants deeper down are jumped over with one binary search per child directory.
+     */
+    public synchronized List<FileRecord> list(String path) {
+        FileRecord directory = get(path);
+        if (directory == null || !directory.isDirectory()) {
+            return null;
+        }
+        String prefix = path.isEmpty() ? "" : path + "/";
+        TreeMap<String, FileRecord> children = new TreeMap<>();
+        int i = lowerBound(prefix);
+        while (i < count) {
+            String child = pathAt(i);
+            if (!child.startsWith(prefix)) {
+                break;
+            }
+            String rest = child.substring(prefix.length());
+            int slash = rest.indexOf('/');
+            if (rest.isEmpty()) {
+                i++;
+            } else if (slash < 0) {
+                children.put(rest, recordAt(i));
+                i++;
+            } else {
+                // '0' follows '/', so this is the first path after the whole subtree
+                i = lowerBound(prefix + rest.substring(0, slash) + '0');
+            }
+        }
+        for (Map.Entry<String, FileRecord> change
+                : tail.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+            String rest = change.getKey().substring(prefix.length());
+            if (rest.isEmpty() || rest.indexOf('/') >= 0) {
+                continue;
+            }
+            if (change.getValue() == null) {
+                children.remove(rest);
+            } else {
+                children.put(rest, change.getValue());
+            }
+        }
+        return new ArrayList<>(children.values());
+    }
+
+    /**
+     * All records in path order, so every directory comes before its entries
+     */
+    public synchronized void forEach(Consumer<FileRecord> consumer) {
+        merged().forEachRemaining(consumer);
+    }
+
+    /**
+     * Replaces the whole catalog, for a tree that was scanned from scratch
+     */
+    public synchronized void rewrite(List<FileRecord> records) throws IOException {
+        FileRecord[] sorted = records.toArray(new FileRecord[0]);
+        Arrays.sort(sorted, Comparator.comparing(FileRecord::getPath));
+        writeSnapshot(Arrays.asList(sorted).iterator());
+    }
+
+    /**
+     * Folds the log into a new snapshot
+     */
+    public synchronized void compact() throws IOException {
+        writeSnapshot(merged());
+    }
+
+    /**
+     * Forces the log to the disk
+     */
+    public synchronized void sync() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            log.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            System.out.println("Catalog log is not synced: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        background.shutdownNow();
+        sync();
+        log.close();
+        lock.release();
+        lockChannel.close();
+    }
+
+    private void compactIfNeeded() {
+        try {
+            synchronized (this) {
+                long logSize = log.size();
+                if (logSize >= COMPACT_BYTES && logSize >= (snapshot == null ? 0 : snapshot.capacity()) / 2) {
+                    compact();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Catalog is not compacted: " + e.getMessage());
+        }
+    }
+
+    private void append(byte op, String path, FileRecord record) throws IOException {
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(op);
+        if (record == null) {
+            FileRecord.writeString(out, path);
+        } else {
+            record.write(out);
+        }
+        appendBuffer();
+    }
+
+    /**
+     * Empties the log and starts it for the current snapshot
+     */
+    private void startLog() throws IOException {
+        log.truncate(0);
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(GENERATION);
+        out.writeLong(generation);
+        appendBuffer();
+        log.force(false);
+        dirty = false;
+    }
+
+    private void appendBuffer() throws IOException {
+        crc.reset();
+        crc.update(buffer.toByteArray());
+        ByteBuffer entry = ByteBuffer.allocate(8 + buffer.size());
+        entry.putInt(buffer.size()).putInt((int) crc.getValue()).put(buffer.toByteArray()).flip();
+        long position = log.size();
+        while (entry.hasRemaining()) {
+            position += log.write(entry, position);
+        }
+        dirty = true;
+    }
+
+    private void replay() throws IOException {
+        long valid = 0;
+        int replayed = 0;
+        boolean stale = false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0))));
+        try {
+            while (true) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length <= 0 || length > MAX_RECORD) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = record.readByte();
+                if (op == GENERATION && valid == 0) {
+                    if (record.readLong() != generation) {
+                        stale = true;
+                        break;
+                    }
+                } else if (valid == 0 && generation != 0) {
+                    // a log without generation only goes with a snapshot without one
+                    stale = true;
+                    break;
+                } else if (op == PUT) {
+                    FileRecord put = FileRecord.read(record);
+                    tail.put(put.getPath(), put);
+                } else if (op == DELETE) {
+                    tail.put(FileRecord.readString(record), null);
+                } else {
+                    break;
+                }
+                valid += 8 + length;
+                if (op != GENERATION) {
+                    replayed++;
+                }
+            }
+        } catch (EOFException e) {
+            // torn write at the end
+        }
+        if (stale) {
+            System.out.println("Catalog log of an older snapshot is dropped");
+            tail.clear();
+            startLog();
+            return;
+        }
+        if (valid == 0) {
+            // empty, or only a torn start
+            startLog();
+        } else if (valid < log.size()) {
+            System.out.println("Catalog log is cut at " + valid + " of " + log.size() + " bytes");
+            log.truncate(valid);
+            log.force(false);
+        }
+        if (replayed > 0) {
+            System.out.println("Catalog log replayed: " + replayed + " changes");
+        }
+    }
+
+    private void writeSnapshot(Iterator<FileRecord> records) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        int[] offsets = new int[1024];
+        int written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            while (records.hasNext()) {
+                FileRecord record = records.next();
+                if (written == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, written * 2);
+                }
+                offsets[written++] = out.size();
+                record.write(out);
+                if (out.size() < 0) {
+                    throw new IOException("Catalog snapshot is over 2 GB");
+                }
+            }
+            int index = out.size();
+            for (int i = 0; i < written; i++) {
+                out.writeInt(offsets[i]);
+            }
+            out.writeInt(index);
+            out.writeInt(written);
+            out.writeLong(generation + 1);
+            out.writeLong(MAGIC);
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // a crash from here until the log is started again leaves a log of the previous generation,
+        // the next open drops it instead of replaying it onto this snapshot
+        tail.clear();
+        mapSnapshot();
+        startLog();
+    }
+
+    private void mapSnapshot() throws IOException {
+        Path path = dir.resolve(SNAPSHOT);
+        if (!Files.exists(path)) {
+            snapshot = null;
+            count = 0;
+            generation = 0;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_V1 || size > Integer.MAX_VALUE) {
+                throw new IOException("Catalog snapshot " + path + " is damaged");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            long magic = mapped.getLong((int) size - 8);
+            int trailer;
+            if (magic == MAGIC && size >= TRAILER) {
+                trailer = TRAILER;
+                generation = mapped.getLong((int) size - 16);
+            } else if (magic == MAGIC_V1) {
+                trailer = TRAILER_V1;
+                generation = 0;
+            } else {
+                throw new IOException("Catalog snapshot " + path + " is damaged");
+            }
+            snapshot = mapped;
+            indexOffset = mapped.getInt((int) size - trailer);
+            count = mapped.getInt((int) size - trailer + 4);
+        }
+    }
+
+    private int lowerBound(String path) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (pathAt(mid).compareTo(path) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer at(int i) {
+        ByteBuffer record = snapshot.duplicate();
+        record.position(snapshot.getInt(indexOffset + i * 4));
+        return record;
+    }
+
+    private String pathAt(int i) {
+        return FileRecord.readString(at(i));
+    }
+
+    private FileRecord recordAt(int i) {
+        return FileRecord.read(at(i));
+    }
+
+    /**
+     * Snapshot and tail merged by path, the tail wins and hides deleted paths
+     */
+    private Iterator<FileRecord> merged() {
+        Iterator<Map.Entry<String, FileRecord>> changes = new ArrayList<>(tail.entrySet()).iterator();
+        return new Iterator<>() {
+            private int i;
+            private Map.Entry<String, FileRecord> change = changes.hasNext() ? changes.next() : null;
+            private FileRecord next = advance();
+
+            private FileRecord advance() {
+                while (i < count || change != null) {
+                    String path = i < count ? pathAt(i) : null;
+                    int order = path == null ? 1 : change == null ? -1 : path.compareTo(change.getKey());
+                    if (order < 0) {
+                        return recordAt(i++);
+                    }
+                    if (order == 0) {
+                        i++;
+                    }
+                    FileRecord record = change.getValue();
+                    change = changes.hasNext() ? changes.next() : null;
+                    if (record != null) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public FileRecord next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                FileRecord current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,123 @@
+package ru.khrebtov.catalog;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Metadata of one file or directory in the {@link Catalog}.
+ * The path is relative to the storage root with / between names, "" is the root itself.
+ */
+public class FileRecord {
+    private final String path;
+    private final boolean directory;
+    // of the content for files, 0 for directories
+    private final long size;
+    private final long created;
+    private final long modified;
+    // "" when unknown
+    private final String hash;
+    // first path component: the user directory, "" for the root entries
+    private final String owner;
+
+    public FileRecord(String path, boolean directory, long size, long created, long modified, String hash, String owner) {
+        this.path = path;
+        this.directory = directory;
+        this.size = size;
+        this.created = created;
+        this.modified = modified;
+        this.hash = hash == null ? "" : hash;
+        this.owner = owner == null ? "" : owner;
+    }
+
+    public static String ownerOf(String path) {
+        int slash = path.indexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    void write(DataOutput out) throws IOException {
+        writeString(out, path);
+        out.writeBoolean(directory);
+        out.writeLong(size);
+        out.writeLong(created);
+        out.writeLong(modified);
+        writeString(out, hash);
+        writeString(out, owner);
+    }
+
+    static FileRecord read(DataInput in) throws IOException {
+        String path = readString(in);
+        boolean directory = in.readBoolean();
+        long size = in.readLong();
+        long created = in.readLong();
+        long modified = in.readLong();
+        return new FileRecord(path, directory, size, created, modified, readString(in), readString(in));
+    }
+
+    static FileRecord read(ByteBuffer buffer) {
+        String path = readString(buffer);
+        boolean directory = buffer.get() != 0;
+        long size = buffer.getLong();
+        long created = buffer.getLong();
+        long modified = buffer.getLong();
+        return new FileRecord(path, directory, size, created, modified, readString(buffer), readString(buffer));
+    }
+
+    // plain length + UTF-8, writeUTF stops at 64K
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    @Override
+    public String toString() {
+        return path + (directory ? "/" : " " + size);
+    }
+}
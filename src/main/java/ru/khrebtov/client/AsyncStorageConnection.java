@@ -0,0 +1,278 @@
+package ru.khrebtov.client;
+
+import ru.khrebtov.client.Replies.RefusedException;
+import ru.khrebtov.client.Replies.Reply;
+import ru.khrebtov.client.Replies.Request;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pipelined connection to the blocking server: every call sends its request at once and returns
+ * a future, any number of requests are in flight on one connection. Requests go in a req envelope
+ * with an id, one reader thread matches the tagged replies to their futures as they arrive,
+ * so listing a hundred directories costs one round trip instead of a hundred.
+ * <p>
+ * Thread-safe. Sending is synchronous - an upload returns once its bytes are in the socket
+ * buffer. The requests share one byte stream and a request is written whole, so an upload keeps
+ * the connection to itself while its body goes out: requests sent meanwhile wait for it, in the
+ * order they came. Big uploads that must not hold up small requests go over
+ * {@link MultiplexedStorageConnection}, which splits them into frames, or a connection of their own.
+ * Futures are completed on the reader thread: dependent stages that block must run on an executor
+ * of their own ({@code thenApplyAsync} and the like) or they stall all replies.
+ * A broken connection fails every pending future with the IOException.
+ * <p>
+ * Commands with a round trip inside them (delta, dedup, resumable uploads) stay with
+ * {@link StorageConnection}.
+ */
+public class AsyncStorageConnection implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Map<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+    // fair: while an upload is written the senders behind it queue up and go in turn
+    private final Lock sending = new ReentrantLock(true);
+    private final Thread reader;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int nextId;
+    private volatile IOException failure;
+    private volatile String token;
+
+    public AsyncStorageConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        reader = new Thread(this::readReplies, "storage-reader-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Completes with false if the name is taken or not allowed, or the server is too busy to register now
+     */
+    public CompletableFuture<Boolean> register(String name, String password) {
+        return send(in -> "OK".equals(in.readUTF()), "register", name, password);
+    }
+
+    /**
+     * Completes with OK, WRONG or BUSY (the server has no CPU to check the password now).
+     * Requests sent before the login completes are refused by the server, the connection is closed then
+     */
+    public CompletableFuture<String> login(String name, String password) {
+        return send(in -> {
+            String status = in.readUTF();
+            if ("OK".equals(status)) {
+                token = in.readUTF();
+            }
+            return status;
+        }, "login", name, password);
+    }
+
+    /**
+     * Session token of the last successful login, null before it
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public CompletableFuture<Void> logout() {
+        return send(in -> {
+            in.readUTF();
+            token = null;
+            return null;
+        }, "logout");
+    }
+
+    public CompletableFuture<Void> upload(String name, byte[] content) {
+        return send(Replies::uploaded, Replies.upload(name, content.length, target -> target.write(content)), true);
+    }
+
+    /**
+     * Sends the size the file has when it is opened and that many bytes. A file that shrinks before
+     * they are all sent breaks the connection: every pending future fails
+     * @throws IOException if the file can not be opened, nothing is sent then
+     */
+    public CompletableFuture<Void> upload(String name, Path file) throws IOException {
+        // sending is synchronous, the file is not read any more once send returns
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return send(Replies::uploaded, Replies.upload(name, channel), true);
+        }
+    }
+
+    /**
+     * Completes with the whole file, for small files
+     */
+    public CompletableFuture<byte[]> download(String name) {
+        return send(in -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Replies.file(in, bytes, buffer);
+            return bytes.toByteArray();
+        }, "download", name);
+    }
+
+    /**
+     * Completes with the size once the file is written to the target. The target is written
+     * on the reader thread, a slow target holds up the replies behind it
+     */
+    public CompletableFuture<Long> download(String name, OutputStream target) {
+        return send(in -> Replies.file(in, target, buffer), "download", name);
+    }
+
+    /**
+     * Completes with -1 if there is no such file
+     */
+    public CompletableFuture<Long> size(String name) {
+        return send(DataInputStream::readLong, "size", name);
+    }
+
+    /**
+     * Names in a directory, "" for the user directory, null if there is no such directory
+     */
+    public CompletableFuture<List<String>> list(String dir) {
+        return send(Replies::list, "list", dir);
+    }
+
+    public CompletableFuture<List<String>> search(String query, int limit) {
+        return send(Replies::search, Replies.search(query, limit), true);
+    }
+
+    /**
+     * Waits for the requests in flight, says goodbye to the server and closes the connection
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // the server answers exit with DONE and no command echo
+            send(in -> in.readUTF(), out -> out.writeUTF("exit"), false).get(5, TimeUnit.SECONDS);
+            reader.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // already broken, closing is all that is left
+        } finally {
+            socket.close();
+        }
+    }
+
+    private <T> CompletableFuture<T> send(Reply<T> reply, String command, String... args) {
+        return send(reply, Replies.command(command, args), true);
+    }
+
+    private <T> CompletableFuture<T> send(Reply<T> reply, Request body, boolean echo) {
+        Pending<T> request = new Pending<>(reply, echo);
+        sending.lock();
+        try {
+            if (failure != null) {
+                request.future.completeExceptionally(failure);
+                return request.future;
+            }
+            int id = nextId++;
+            // registered before sending: the reply may come before this method returns
+            pending.put(id, request);
+            try {
+                out.writeUTF("req");
+                out.writeInt(id);
+                body.write(out);
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        } finally {
+            sending.unlock();
+        }
+        return request.future;
+    }
+
+    private void readReplies() {
+        try {
+            while (true) {
+                int id = in.readInt();
+                Pending<?> request = pending.remove(id);
+                if (request == null) {
+                    throw new IOException("Reply to an unknown request " + id);
+                }
+                if (request.complete(in)) {
+                    // exit
+                    break;
+                }
+            }
+            fail(new EOFException("Connection closed"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        for (Integer id : pending.keySet()) {
+            Pending<?> request = pending.remove(id);
+            if (request != null) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing more can be done
+        }
+    }
+
+    private static class Pending<T> {
+        private final Reply<T> reply;
+        // every reply but the one to exit ends with the command echo
+        private final boolean echo;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(Reply<T> reply, boolean echo) {
+            this.reply = reply;
+            this.echo = echo;
+        }
+
+        /**
+         * Reads the reply, a refused request fails only its own future
+         * @return true if it was the last reply on the connection
+         */
+        boolean complete(DataInputStream in) throws IOException {
+            T value;
+            RefusedException refused = null;
+            try {
+                value = reply.read(in);
+            } catch (RefusedException e) {
+                value = null;
+                refused = e;
+            }
+            if (echo) {
+                in.readUTF();
+            }
+            if (refused != null) {
+                future.completeExceptionally(refused);
+            } else {
+                future.complete(value);
+            }
+            return !echo;
+        }
+    }
+}
@@ -1,27 +1,31 @@
 package ru.khrebtov.client;
 
+import ru.khrebtov.compression.Compression;
+import ru.khrebtov.delta.Delta;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Swing client - File Storage
- * Client command: upload filename | download filename
+ * Client command: register name password | login name password | upload filename | zupload filename | dupload filename | dsync filename | download filename | zdownload filename | pdownload filename | search text | ls [dir] | stat filename
  */
 
 public class Client extends JFrame {
-    private final Socket socket;
-    private final DataOutputStream out;
-    private final DataInputStream in;
+    private static final long serialVersionUID = 1L;
+    private static final int SEARCH_LIMIT = 1000;
+    // the protocol lives there, the window only parses commands and prints replies
+    private final transient StorageConnection connection;
 
     public Client() throws IOException {
         // init
-        socket = new Socket("localhost", 6789);
-        out = new DataOutputStream(socket.getOutputStream());
-        in = new DataInputStream(socket.getInputStream());
+        connection = new StorageConnection("localhost", 6789);
 
         // create form
         setSize(300, 300);
@@ -32,10 +36,30 @@ public class Client extends JFrame {
 
         btnSend.addActionListener(a -> {
             String[] cmd = textField.getText().split(" ");
-            if ("upload".equals(cmd[0])) {
+            if ("register".equals(cmd[0])) {
+                register(cmd[1], cmd[2]);
+            } else if ("login".equals(cmd[0])) {
+                login(cmd[1], cmd[2]);
+            } else if ("upload".equals(cmd[0])) {
                 sendFile(cmd[1]);
             } else if ("download".equals(cmd[0])) {
                 getFile(cmd[1]);
+            } else if ("pdownload".equals(cmd[0])) {
+                getFileParallel(cmd[1]);
+            } else if ("zupload".equals(cmd[0])) {
+                sendFileCompressed(cmd[1]);
+            } else if ("zdownload".equals(cmd[0])) {
+                getFileCompressed(cmd[1]);
+            } else if ("dsync".equals(cmd[0])) {
+                sendFileDelta(cmd[1]);
+            } else if ("dupload".equals(cmd[0])) {
+                sendFileDedup(cmd[1]);
+            } else if ("search".equals(cmd[0])) {
+                search(cmd[1]);
+            } else if ("ls".equals(cmd[0])) {
+                list(cmd.length > 1 ? cmd[1] : "");
+            } else if ("stat".equals(cmd[0])) {
+                stat(cmd[1]);
             }
 
         });
@@ -44,7 +68,11 @@ public class Client extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 super.windowClosing(e);
-                sendMessage("exit");
+                try {
+                    connection.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
             }
         });
 
@@ -57,6 +85,34 @@ public class Client extends JFrame {
         setVisible(true);
     }
 
+    /**
+     * create user on the server
+     *
+     * @param name     String
+     * @param password String
+     */
+    private void register(String name, String password) {
+        try {
+            System.out.println("Register status: " + (connection.register(name, password) ? "OK" : "WRONG"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * log in, the server answers with a session token
+     *
+     * @param name     String
+     * @param password String
+     */
+    private void login(String name, String password) {
+        try {
+            System.out.println("Login status: " + connection.login(name, password));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * download file from server
      *
@@ -64,55 +120,131 @@ public class Client extends JFrame {
      */
     private void getFile(String filename) {
         try {
-
-            File file = new File("client/" + filename);
-            if (!file.exists()) {
-                file.createNewFile();
+            // a missing file has no reply in the download shape, ask first
+            if (connection.size(filename) < 0) {
+                System.err.println("File not found on server - " + filename);
+                return;
             }
-            out.writeUTF("download");
-            out.writeUTF(filename);
-
-            FileOutputStream fos = new FileOutputStream(file);
-            long size = in.readLong();
-            byte[] buffer = new byte[8 * 1024];
-            for (int i = 0; i < (size + (8 * 1024 - 1)) / (8 * 1024); i++) {
-                int read = in.read(buffer);
-                fos.write(buffer, 0, read);
+            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream("client/" + filename))) {
+                connection.download(filename, fos);
             }
-            fos.close();
-            String status = in.readUTF();
-            String cmd = in.readUTF();
+            System.out.printf("download OK %s \n", filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            System.out.printf("%s %s %s \n", cmd, status, filename);
+    /**
+     * download file from server over several connections,
+     * their number is set with -Dcloud.download.parallelism
+     *
+     * @param filename String
+     */
+    private void getFileParallel(String filename) {
+        try {
+            // extra connections resume the session of the logged in user
+            ParallelDownloader downloader = new ParallelDownloader("localhost", 6789, connection.getToken());
+            long start = System.nanoTime();
+            long size = downloader.download(filename, Path.of("client", filename));
+            System.out.printf("pdownload OK %s, %d bytes in %d ms over %d connections\n", filename, size,
+                    (System.nanoTime() - start) / 1_000_000, downloader.getParallelism());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Resumable upload: asks the server for the committed offset and sends the rest
+     * in checksummed chunks, a chunk with a bad checksum is sent again
+     *
+     * @param filename String
+     */
     private void sendFile(String filename) {
         try {
-            File file = new File("client/" + filename);
-            if (!file.exists()) {
-                throw new FileNotFoundException();
-            }
+            System.out.println("Sending status: " + connection.uploadResumable(filename, clientFile(filename)));
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            long fileLength = file.length();
-            FileInputStream fis = new FileInputStream(file);
+    /**
+     * download file with compression, level is set with -Dcloud.compression.level
+     *
+     * @param filename String
+     */
+    private void getFileCompressed(String filename) {
+        try {
+            long start = System.nanoTime();
+            Path target = Path.of("client", filename);
+            Compression.Stats stats;
+            try (OutputStream fos = new BufferedOutputStream(Files.newOutputStream(target))) {
+                stats = connection.downloadCompressed(filename, Compression.defaultLevel(), fos);
+            }
+            if (stats == null) {
+                Files.deleteIfExists(target);
+                System.err.println("File not found on server - " + filename);
+                return;
+            }
+            System.out.printf("zdownload OK %s: %s in %d ms\n", filename, stats,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            out.writeUTF("upload");
-            out.writeUTF(filename);
-            out.writeLong(fileLength);
+    /**
+     * upload file with compression, skipped for compressed file types and data that does not shrink
+     *
+     * @param filename String
+     */
+    private void sendFileCompressed(String filename) {
+        try {
+            long start = System.nanoTime();
+            Compression.Stats stats = connection.uploadCompressed(filename, clientFile(filename),
+                    Compression.defaultLevel());
+            System.out.printf("zupload OK %s: %s in %d ms\n", filename, stats,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            int read = 0;
-            byte[] buffer = new byte[8 * 1024];
-            while ((read = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
+    /**
+     * Delta upload: the server sends block signatures of its copy, only changed data goes back.
+     * Without a copy on the server it is a usual upload
+     *
+     * @param filename String
+     */
+    private void sendFileDelta(String filename) {
+        try {
+            Delta.Stats stats = connection.uploadDelta(filename, clientFile(filename));
+            if (stats == null) {
+                System.out.println("Sending status: DONE, no copy on the server, sent whole");
+            } else {
+                System.out.printf("Sending status: OK, %d bytes sent, %d blocks reused\n",
+                        stats.getLiteralBytes(), stats.getBlocks());
             }
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            out.flush();
-
-            String status = in.readUTF();
-            System.out.println("Sending status: " + status);
+    /**
+     * Deduplicating upload: the file is cut into content-defined chunks,
+     * the server asks only for the chunks it does not hold yet
+     *
+     * @param filename String
+     */
+    private void sendFileDedup(String filename) {
+        try {
+            int sent = connection.uploadDedup(filename, clientFile(filename));
+            System.out.printf("Sending status: OK, %d chunks sent\n", sent);
         } catch (FileNotFoundException e) {
             System.err.println("File not found - /client/" + filename);
         } catch (IOException e) {
@@ -121,25 +253,72 @@ public class Client extends JFrame {
     }
 
     /**
-     * message sending
+     * search files on the server by name part or glob (*, ?)
      *
-     * @param message String
+     * @param query String
      */
-    private void sendMessage(String message) {
+    private void search(String query) {
         try {
-            out.writeUTF(message);
-            String command = in.readUTF();
-//			if ("done".equalsIgnoreCase(command)) {
-//
-//			}
-            System.out.println(command);
-        } catch (EOFException eofException) {
-            System.err.println("Reading command error from " + socket.getInetAddress());
+            List<String> paths = connection.search(query, SEARCH_LIMIT);
+            paths.forEach(System.out::println);
+            System.out.printf("%d found\n", paths.size());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * list a directory on the server, "" for the user directory
+     *
+     * @param dir String
+     */
+    private void list(String dir) {
+        try {
+            List<StorageConnection.Entry> entries = connection.entries(dir);
+            if (entries == null) {
+                System.err.println("Directory not found - " + dir);
+                return;
+            }
+            for (StorageConnection.Entry entry : entries) {
+                System.out.printf("%s %14d %tF %<tT %s\n", entry.isDirectory() ? "d" : "-", entry.getSize(),
+                        entry.getModified(), entry.getName());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * size, dates, content hash and owner of a file on the server
+     *
+     * @param filename String
+     */
+    private void stat(String filename) {
+        try {
+            StorageConnection.Stat stat = connection.stat(filename);
+            if (stat == null) {
+                System.err.println("File not found - " + filename);
+                return;
+            }
+            System.out.printf("%s %d bytes, created %tF %<tT, modified %tF %<tT, hash %s, owner %s\n",
+                    stat.isDirectory() ? "directory" : "file", stat.getSize(), stat.getCreated(), stat.getModified(),
+                    stat.getHash().isEmpty() ? "-" : stat.getHash(), stat.getOwner().isEmpty() ? "-" : stat.getOwner());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @throws FileNotFoundException if there is no such file in the client directory
+     */
+    private static Path clientFile(String filename) throws FileNotFoundException {
+        Path file = Path.of("client", filename);
+        if (!Files.isRegularFile(file)) {
+            throw new FileNotFoundException(file.toString());
+        }
+        return file;
+    }
+
     public static void main(String[] args) throws IOException {
         new Client();
     }
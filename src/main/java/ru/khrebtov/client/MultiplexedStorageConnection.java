@@ -0,0 +1,257 @@
+package ru.khrebtov.client;
+
+import ru.khrebtov.client.Replies.RefusedException;
+import ru.khrebtov.client.Replies.Reply;
+import ru.khrebtov.client.Replies.Request;
+import ru.khrebtov.mux.FrameWriter;
+import ru.khrebtov.mux.Mux;
+import ru.khrebtov.mux.StreamInput;
+import ru.khrebtov.mux.StreamOutput;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection to the blocking server in multiplexed mode: every call is a stream of its own,
+ * uploads, downloads and small commands run at the same time and share the connection frame
+ * by frame, so a big transfer does not hold up a listing. Unlike {@link AsyncStorageConnection}
+ * replies do not come in the order of the requests.
+ * <p>
+ * Thread-safe, calls return at once. Each call runs on a pooled thread that sends the request
+ * and reads the reply; futures are completed there. The server runs up to 16 streams of a
+ * connection at once (cloud.server.mux-streams) and fails the ones above that, so calls above
+ * {@link #MAX_STREAMS} wait here for a free stream.
+ */
+public class MultiplexedStorageConnection implements Closeable {
+    public static final int MAX_STREAMS = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ExecutorService STREAMS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "mux-client-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final FrameWriter writer;
+    private final Map<Integer, StreamInput> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStream = new AtomicInteger(Mux.SESSION + 1);
+    private final Semaphore slots = new Semaphore(MAX_STREAMS);
+    private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+    private final Thread reader;
+    private final CompletableFuture<Void> ended = new CompletableFuture<>();
+    private final String token;
+
+    /**
+     * Logs in and switches the connection to multiplexed mode
+     */
+    public MultiplexedStorageConnection(String host, int port, String name, String password) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        try {
+            out.writeUTF("login");
+            out.writeUTF(name);
+            out.writeUTF(password);
+            out.flush();
+            String status = in.readUTF();
+            if (!"OK".equals(status)) {
+                throw new IOException("Login failed: " + status);
+            }
+            token = in.readUTF();
+            in.readUTF(); // command echo
+            out.writeUTF("mux");
+            out.flush();
+            String mux = in.readUTF();
+            if (!"OK".equals(mux)) {
+                throw new IOException("No multiplexed mode: " + mux);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        writer = new FrameWriter(out, "mux-client-writer-" + socket.getLocalPort());
+        reader = new Thread(this::readFrames, "mux-client-reader-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Session token of the login
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public CompletableFuture<Void> upload(String name, byte[] content) {
+        return send(Replies.upload(name, content.length, target -> target.write(content)), Replies::uploaded);
+    }
+
+    public CompletableFuture<Void> upload(String name, Path file) throws IOException {
+        return send(Replies.upload(name, Files.size(file), target -> Files.copy(file, target)), Replies::uploaded);
+    }
+
+    /**
+     * Completes with the whole file, for small files
+     */
+    public CompletableFuture<byte[]> download(String name) {
+        return send(Replies.command("download", name), in -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Replies.file(in, bytes, new byte[Mux.FRAME_SIZE]);
+            return bytes.toByteArray();
+        });
+    }
+
+    /**
+     * Completes with the size once the file is written to the target
+     */
+    public CompletableFuture<Long> download(String name, OutputStream target) {
+        return send(Replies.command("download", name), in -> Replies.file(in, target, new byte[Mux.FRAME_SIZE]));
+    }
+
+    /**
+     * Completes with -1 if there is no such file
+     */
+    public CompletableFuture<Long> size(String name) {
+        return send(Replies.command("size", name), DataInputStream::readLong);
+    }
+
+    /**
+     * Names in a directory, "" for the user directory, null if there is no such directory
+     */
+    public CompletableFuture<List<String>> list(String dir) {
+        return send(Replies.command("list", dir), Replies::list);
+    }
+
+    public CompletableFuture<List<String>> search(String query, int limit) {
+        return send(Replies.search(query, limit), Replies::search);
+    }
+
+    /**
+     * Waits for the streams in flight, ends the session and closes the connection
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).handle((v, e) -> null).join();
+            writer.close();
+            out.writeInt(Mux.SESSION);
+            out.writeInt(Mux.END);
+            out.flush();
+            // the server answers once its streams are done
+            ended.join();
+        } catch (Exception e) {
+            // already broken, closing is all that is left
+        } finally {
+            socket.close();
+        }
+    }
+
+    private <T> CompletableFuture<T> send(Request request, Reply<T> reply) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        inFlight.add(future);
+        int id = nextStream.getAndIncrement();
+        StreamInput input = new StreamInput();
+        streams.put(id, input);
+        if (ended.isDone()) {
+            // the reader is gone, nothing would ever end this stream
+            input.fail(new EOFException("Connection closed"));
+        }
+        STREAMS.execute(() -> {
+            slots.acquireUninterruptibly();
+            StreamOutput output = writer.open(id);
+            try (input) {
+                request.write(new DataOutputStream(output));
+                output.close();
+                DataInputStream data = new DataInputStream(input);
+                T value = null;
+                RefusedException refused = null;
+                try {
+                    value = reply.read(data);
+                } catch (RefusedException e) {
+                    refused = e;
+                }
+                data.readUTF(); // command echo
+                // END comes after the server freed the stream
+                if (data.read() >= 0) {
+                    throw new IOException("Reply is longer than expected");
+                }
+                if (refused != null) {
+                    throw refused;
+                }
+                future.complete(value);
+            } catch (IOException e) {
+                try {
+                    // cancels the request if it was not sent completely
+                    output.fail();
+                } catch (IOException ignored) {
+                    // the connection is gone
+                }
+                future.completeExceptionally(e);
+            } finally {
+                streams.remove(id);
+                slots.release();
+                inFlight.remove(future);
+            }
+        });
+        return future;
+    }
+
+    private void readFrames() {
+        IOException failure = new EOFException("Connection closed");
+        try {
+            while (true) {
+                int stream = in.readInt();
+                int length = in.readInt();
+                if (stream == Mux.SESSION) {
+                    break;
+                }
+                byte[] payload = null;
+                if (length > 0) {
+                    payload = new byte[length];
+                    in.readFully(payload);
+                }
+                StreamInput input = streams.get(stream);
+                if (input == null) {
+                    // the reply is already read or its reader gave up
+                    continue;
+                }
+                if (payload != null) {
+                    input.offer(payload);
+                } else if (length == Mux.END) {
+                    input.end();
+                } else {
+                    input.fail(new IOException("Stream failed on the server"));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            ended.complete(null);
+            for (StreamInput input : streams.values()) {
+                input.fail(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ru.khrebtov.client;
+
+import ru.khrebtov.server.ClientHandler;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Download throughput for 1..K parallel connections over loopback
+ * Run: ParallelDownloadBenchmark [sizeMb] [maxParallelism] [rounds]
+ */
+public class ParallelDownloadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int maxParallelism = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        String name = "parallel-benchmark.bin";
+        Path source = Path.of("server", name);
+        Path target = Path.of("client", name);
+        Files.createDirectories(source.getParent());
+        try (RandomAccessFile raf = new RandomAccessFile(source.toFile(), "rw")) {
+            raf.setLength((long) sizeMb * 1024 * 1024);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    new Thread(new ClientHandler(server.accept().socket())).start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        try {
+            System.out.printf("file %d MB, %d rounds\n", sizeMb, rounds);
+            for (int k = 1; k <= maxParallelism; k *= 2) {
+                ParallelDownloader downloader = new ParallelDownloader("localhost", port, k);
+                downloader.download(name, target); // warm up
+                long start = System.nanoTime();
+                long bytes = 0;
+                for (int i = 0; i < rounds; i++) {
+                    bytes += downloader.download(name, target);
+                }
+                double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+                System.out.printf("K=%d: %.1f MB/s\n", k, bytes / 1024.0 / 1024.0 / seconds);
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+}
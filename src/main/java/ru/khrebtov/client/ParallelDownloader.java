@@ -0,0 +1,173 @@
+package ru.khrebtov.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a file over several connections at once: the file is split into ranges,
+ * every range is fetched with "download-range" and written at its position
+ * into a preallocated file.
+ */
+public class ParallelDownloader {
+    public static final String PARALLELISM_PROPERTY = "cloud.download.parallelism";
+    // smaller files are not worth extra connections
+    private static final long MIN_RANGE_SIZE = 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int parallelism;
+    private final String token;
+
+    public ParallelDownloader(String host, int port) {
+        this(host, port, Integer.getInteger(PARALLELISM_PROPERTY, 4), null);
+    }
+
+    /**
+     * @param token session token of the logged in client, every extra connection resumes it
+     */
+    public ParallelDownloader(String host, int port, String token) {
+        this(host, port, Integer.getInteger(PARALLELISM_PROPERTY, 4), token);
+    }
+
+    public ParallelDownloader(String host, int port, int parallelism) {
+        this(host, port, parallelism, null);
+    }
+
+    public ParallelDownloader(String host, int port, int parallelism, String token) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.host = host;
+        this.port = port;
+        this.parallelism = parallelism;
+        this.token = token;
+    }
+
+    /**
+     * @return downloaded bytes
+     */
+    public long download(String filename, Path target) throws IOException {
+        long size = size(filename);
+        if (size < 0) {
+            throw new FileNotFoundException(filename);
+        }
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+
+        int connections = (int) Math.max(1, Math.min(parallelism, size / MIN_RANGE_SIZE));
+        long rangeSize = (size + connections - 1) / connections;
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            List<Future<?>> ranges = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += rangeSize) {
+                long start = offset;
+                long length = Math.min(rangeSize, size - offset);
+                ranges.add(executor.submit(() -> {
+                    downloadRange(filename, start, length, file);
+                    return null;
+                }));
+            }
+            for (Future<?> range : ranges) {
+                range.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Range download failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return size;
+    }
+
+    private long size(String filename) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            resume(out, in);
+            out.writeUTF("size");
+            out.writeUTF(filename);
+            long size = in.readLong();
+            in.readUTF(); // command echo
+            exit(out, in);
+            return size;
+        }
+    }
+
+    private void downloadRange(String filename, long offset, long length, FileChannel file) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            resume(out, in);
+            out.writeUTF("download-range");
+            out.writeUTF(filename);
+            out.writeLong(offset);
+            out.writeLong(length);
+
+            long left = in.readLong();
+            if (left != length) {
+                throw new IOException(String.format("Range %d+%d came back with %d bytes", offset, length, left));
+            }
+            byte[] bytes = new byte[64 * 1024];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = offset;
+            while (left > 0) {
+                int read = in.read(bytes, 0, (int) Math.min(bytes.length, left));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    position += file.write(buffer, position);
+                }
+                left -= read;
+            }
+            String status = in.readUTF();
+            in.readUTF(); // command echo
+            if (!"OK".equals(status)) {
+                throw new IOException("Range download failed: " + status);
+            }
+            exit(out, in);
+        }
+    }
+
+    private void resume(DataOutputStream out, DataInputStream in) throws IOException {
+        if (token == null) {
+            return;
+        }
+        out.writeUTF("resume");
+        out.writeUTF(token);
+        String status = in.readUTF();
+        in.readUTF(); // command echo
+        if (!"OK".equals(status)) {
+            throw new IOException("Session is not valid: " + status);
+        }
+    }
+
+    private void exit(DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeUTF("exit");
+        in.readUTF();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+}
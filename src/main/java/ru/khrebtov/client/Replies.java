@@ -0,0 +1,143 @@
+package ru.khrebtov.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests and replies of the blocking protocol shared by the asynchronous connections
+ */
+final class Replies {
+    private Replies() {
+    }
+
+    interface Reply<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * The server answered, but not with OK. The connection stays usable
+     */
+    static class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedException(String message) {
+            super(message);
+        }
+    }
+
+    static Request command(String command, String... args) {
+        return out -> {
+            out.writeUTF(command);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+        };
+    }
+
+    static Request upload(String name, long size, Request body) {
+        return out -> {
+            out.writeUTF("upload");
+            out.writeUTF(name);
+            out.writeLong(size);
+            body.write(out);
+        };
+    }
+
+    /**
+     * Upload of an open file: the size is taken from the channel and exactly that many bytes follow.
+     * A file that shrinks meanwhile fails the write with EOFException, the request can not be completed;
+     * bytes it grew by are not sent
+     */
+    static Request upload(String name, FileChannel file) {
+        return out -> {
+            long size = file.size();
+            out.writeUTF("upload");
+            out.writeUTF(name);
+            out.writeLong(size);
+            byte[] buffer = new byte[8 * 1024];
+            ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+            long position = 0;
+            while (position < size) {
+                wrapper.clear().limit((int) Math.min(buffer.length, size - position));
+                int read = file.read(wrapper, position);
+                if (read < 0) {
+                    throw new EOFException("File truncated during upload: " + name);
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+        };
+    }
+
+    static Request search(String query, int limit) {
+        return out -> {
+            out.writeUTF("search");
+            out.writeUTF(query);
+            out.writeInt(limit);
+        };
+    }
+
+    static Void uploaded(DataInputStream in) throws IOException {
+        String status = in.readUTF();
+        if (!"OK".equals(status)) {
+            throw new RefusedException("Upload failed: " + status);
+        }
+        return null;
+    }
+
+    /**
+     * Download reply in the tagged shape: size, bytes and OK, or -1 and WRONG
+     * @return size of the file
+     */
+    static long file(DataInputStream in, OutputStream target, byte[] buffer) throws IOException {
+        long size = in.readLong();
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            target.write(buffer, 0, read);
+            left -= read;
+        }
+        String status = in.readUTF();
+        if (!"OK".equals(status)) {
+            throw new RefusedException("Download failed: " + status);
+        }
+        return size;
+    }
+
+    /**
+     * Names in a directory, null if there is no such directory
+     */
+    static List<String> list(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = count < 0 ? null : new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+            in.readBoolean();
+            in.readLong();
+            in.readLong();
+        }
+        return names;
+    }
+
+    static List<String> search(DataInputStream in) throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (String path = in.readUTF(); !path.isEmpty(); path = in.readUTF()) {
+            paths.add(path);
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,473 @@
+package ru.khrebtov.client;
+
+import ru.khrebtov.compression.Compression;
+import ru.khrebtov.delta.Delta;
+import ru.khrebtov.delta.Signature;
+import ru.khrebtov.storage.ChunkStore;
+import ru.khrebtov.storage.Chunker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The wire protocol of the blocking server: one connection, used by the {@link Client} window
+ * and by programs and tools. Calls are synchronous and not thread-safe, every call reads its whole
+ * reply including the command echo, so the connection is ready for the next one.
+ * A failed call leaves the stream in an unknown state, the connection should be dropped.
+ */
+public class StorageConnection implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private String token;
+
+    public StorageConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * @return false if the name is taken or not allowed, or the server is too busy to register now
+     */
+    public boolean register(String name, String password) throws IOException {
+        call("register", name, password);
+        String status = in.readUTF();
+        echo();
+        return "OK".equals(status);
+    }
+
+    /**
+     * @return OK, WRONG or BUSY (the server has no CPU to check the password now)
+     */
+    public String login(String name, String password) throws IOException {
+        call("login", name, password);
+        String status = in.readUTF();
+        if ("OK".equals(status)) {
+            token = in.readUTF();
+        }
+        echo();
+        return status;
+    }
+
+    /**
+     * Session token of the last successful login, null before it
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public void upload(String name, byte[] content) throws IOException {
+        out.writeUTF("upload");
+        out.writeUTF(name);
+        out.writeLong(content.length);
+        out.write(content);
+        out.flush();
+        String status = in.readUTF();
+        echo();
+        if (!"OK".equals(status)) {
+            throw new IOException("Upload failed: " + status);
+        }
+    }
+
+    /**
+     * The server answers a missing file with a bare WRONG where the size should be,
+     * so only files known to exist may be asked for, see {@link #size}
+     * @return size of the file
+     */
+    public long download(String name, OutputStream target) throws IOException {
+        call("download", name);
+        long size = in.readLong();
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            target.write(buffer, 0, read);
+            left -= read;
+        }
+        String status = in.readUTF();
+        echo();
+        if (!"OK".equals(status)) {
+            throw new IOException("Download failed: " + status);
+        }
+        return size;
+    }
+
+    /**
+     * @return -1 if there is no such file
+     */
+    public long size(String name) throws IOException {
+        call("size", name);
+        long size = in.readLong();
+        echo();
+        return size;
+    }
+
+    /**
+     * Names in a directory, "" for the user directory, null if there is no such directory
+     */
+    public List<String> list(String dir) throws IOException {
+        List<Entry> entries = entries(dir);
+        if (entries == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Entries of a directory with their size and modification time, null if there is no such directory
+     */
+    public List<Entry> entries(String dir) throws IOException {
+        call("list", dir);
+        int count = in.readInt();
+        List<Entry> entries = count < 0 ? null : new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong()));
+        }
+        echo();
+        return entries;
+    }
+
+    /**
+     * @return null if there is no such file
+     */
+    public Stat stat(String name) throws IOException {
+        call("stat", name);
+        Stat stat = null;
+        if (in.readBoolean()) {
+            stat = new Stat(in.readBoolean(), in.readLong(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+        }
+        echo();
+        return stat;
+    }
+
+    /**
+     * Resumable upload: asks the server for the committed offset and sends the rest
+     * in checksummed chunks, a chunk with a bad checksum is sent again
+     * @return the last status: DONE when the file is complete, CRC when retries ran out
+     */
+    public String uploadResumable(String name, Path file) throws IOException {
+        long fileLength = Files.size(file);
+        out.writeUTF("upload-offset");
+        out.writeUTF(name);
+        out.writeLong(fileLength);
+        out.flush();
+        long offset = in.readLong();
+        echo();
+
+        String status = offset == fileLength ? "DONE" : "OK";
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int retries = 0;
+            while (offset < fileLength) {
+                int length = (int) Math.min(chunk.length, fileLength - offset);
+                raf.seek(offset);
+                raf.readFully(chunk, 0, length);
+                CRC32C crc = new CRC32C();
+                crc.update(chunk, 0, length);
+
+                out.writeUTF("upload-chunk");
+                out.writeUTF(name);
+                out.writeLong(fileLength);
+                out.writeLong(offset);
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+                out.writeInt((int) crc.getValue());
+                out.flush();
+
+                status = in.readUTF();
+                echo();
+                if ("OK".equals(status) || "DONE".equals(status)) {
+                    offset += length;
+                    retries = 0;
+                } else if (!"CRC".equals(status) || ++retries > MAX_RETRIES) {
+                    break;
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Download with compression at the given level
+     * @return null if there is no such file
+     */
+    public Compression.Stats downloadCompressed(String name, int level, OutputStream target) throws IOException {
+        out.writeUTF("download-z");
+        out.writeUTF(name);
+        out.writeInt(level);
+        out.flush();
+        long size = in.readLong();
+        if (size < 0) {
+            echo();
+            return null;
+        }
+        byte codec = in.readByte();
+        Compression.Stats stats = Compression.receive(in, size, codec, target);
+        String status = in.readUTF();
+        echo();
+        if (!"OK".equals(status)) {
+            throw new IOException("Download failed: " + status);
+        }
+        return stats;
+    }
+
+    /**
+     * Upload with compression at the given level, sent raw for compressed file types
+     * and data that does not shrink
+     */
+    public Compression.Stats uploadCompressed(String name, Path file, int level) throws IOException {
+        byte codec = Compression.RAW;
+        if (level != 0) {
+            try (InputStream head = Files.newInputStream(file)) {
+                if (Compression.worthCompressing(name, head)) {
+                    codec = Compression.DEFLATE;
+                }
+            }
+        }
+        long size = Files.size(file);
+        out.writeUTF("upload-z");
+        out.writeUTF(name);
+        out.writeLong(size);
+        out.writeByte(codec);
+        Compression.Stats stats;
+        try (InputStream content = Files.newInputStream(file)) {
+            stats = Compression.send(content, size, codec, level, out);
+        }
+        out.flush();
+        String status = in.readUTF();
+        echo();
+        if (!"OK".equals(status)) {
+            throw new IOException("Upload failed: " + status);
+        }
+        return stats;
+    }
+
+    /**
+     * Delta upload: the server sends block signatures of its copy, only changed data goes back
+     * @return null if the server had no copy and the file went as a resumable upload
+     */
+    public Delta.Stats uploadDelta(String name, Path file) throws IOException {
+        out.writeUTF("upload-delta");
+        out.writeUTF(name);
+        out.writeLong(Files.size(file));
+        out.flush();
+        int blockSize = in.readInt();
+        if (blockSize == 0) {
+            echo();
+            String status = uploadResumable(name, file);
+            if (!"DONE".equals(status)) {
+                throw new IOException("Upload failed: " + status);
+            }
+            return null;
+        }
+        Signature signature = Signature.read(blockSize, in);
+
+        MessageDigest digest = Delta.sha256();
+        Delta.Stats stats;
+        try (InputStream content = Files.newInputStream(file)) {
+            stats = Delta.encode(signature, content, out, digest);
+        }
+        out.write(digest.digest());
+        out.flush();
+        String status = in.readUTF();
+        echo();
+        if (!"OK".equals(status)) {
+            throw new IOException("Upload failed: " + status);
+        }
+        return stats;
+    }
+
+    /**
+     * Deduplicating upload: the file is cut into content-defined chunks,
+     * the server asks only for the chunks it does not hold yet
+     * @return number of chunks sent
+     */
+    public int uploadDedup(String name, Path file) throws IOException {
+        List<byte[]> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        try (InputStream content = new BufferedInputStream(Files.newInputStream(file))) {
+            Chunker.split(content, (data, length) -> {
+                hashes.add(ChunkStore.sha256(data, length));
+                lengths.add(length);
+            });
+        }
+        long[] offsets = new long[lengths.size()];
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = offsets[i - 1] + lengths.get(i - 1);
+        }
+
+        out.writeUTF("upload-dedup");
+        out.writeUTF(name);
+        out.writeInt(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            out.write(hashes.get(i));
+            out.writeInt(lengths.get(i));
+        }
+        out.flush();
+
+        int missing = in.readInt();
+        int[] indexes = new int[missing];
+        for (int i = 0; i < missing; i++) {
+            indexes[i] = in.readInt();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            byte[] chunk = new byte[Chunker.MAX_SIZE];
+            for (int index : indexes) {
+                raf.seek(offsets[index]);
+                raf.readFully(chunk, 0, lengths.get(index));
+                out.write(chunk, 0, lengths.get(index));
+            }
+        }
+        out.flush();
+        String status = in.readUTF();
+        echo();
+        if (!"OK".equals(status)) {
+            throw new IOException("Upload failed: " + status);
+        }
+        return missing;
+    }
+
+    public List<String> search(String query, int limit) throws IOException {
+        out.writeUTF("search");
+        out.writeUTF(query);
+        out.writeInt(limit);
+        out.flush();
+        List<String> paths = new ArrayList<>();
+        for (String path = in.readUTF(); !path.isEmpty(); path = in.readUTF()) {
+            paths.add(path);
+        }
+        echo();
+        return paths;
+    }
+
+    /**
+     * Says goodbye to the server if the connection still works, then closes it
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!socket.isClosed()) {
+                out.writeUTF("exit");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // already broken, closing is all that is left
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void call(String command, String... args) throws IOException {
+        out.writeUTF(command);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        out.flush();
+    }
+
+    private void echo() throws IOException {
+        in.readUTF();
+    }
+
+    public static class Entry {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+
+        Entry(String name, boolean directory, long size, long modified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+    }
+
+    /**
+     * Catalog record of a path, the hash and the owner are empty when unknown
+     */
+    public static class Stat {
+        private final boolean directory;
+        private final long size;
+        private final long created;
+        private final long modified;
+        private final String hash;
+        private final String owner;
+
+        Stat(boolean directory, long size, long created, long modified, String hash, String owner) {
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+            this.modified = modified;
+            this.hash = hash;
+            this.owner = owner;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+    }
+}
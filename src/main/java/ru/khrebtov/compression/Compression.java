@@ -0,0 +1,231 @@
+package ru.khrebtov.compression;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-transfer compression. The sender decides: files of compressed types and data whose
+ * sample does not shrink go raw, the rest is deflated in frames
+ * {@code [int length][deflated bytes]} ended by a zero length, so the receiver
+ * never reads past the transfer.
+ */
+public class Compression {
+    public static final String LEVEL_PROPERTY = "cloud.compression.level";
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    public static final int FRAME_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // the sample must shrink at least by this much
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "war",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm",
+            "docx", "xlsx", "pptx", "odt", "epub");
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Compression level from -Dcloud.compression.level, 0 turns compression off
+     */
+    public static int defaultLevel() {
+        return Integer.getInteger(LEVEL_PROPERTY, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param head beginning of the data, up to 64 KB of it are deflated as a sample
+     */
+    public static boolean worthCompressing(String name, InputStream head) throws IOException {
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        byte[] sample = head.readNBytes(SAMPLE_SIZE);
+        if (sample.length == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] output = new byte[sample.length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < sample.length) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed < sample.length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Sends exactly size bytes of the input with the codec
+     */
+    public static Stats send(InputStream in, long size, byte codec, int level, DataOutputStream out)
+            throws IOException {
+        Stats stats = new Stats(codec);
+        byte[] buffer = new byte[FRAME_SIZE];
+        if (codec == RAW) {
+            copy(in, size, buffer, out, stats);
+            stats.wireBytes = stats.rawBytes;
+            return stats;
+        }
+
+        Deflater deflater = new Deflater(level);
+        byte[] frame = new byte[FRAME_SIZE + 1024];
+        try {
+            long left = size;
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                left -= read;
+                stats.rawBytes += read;
+                deflater.setInput(buffer, 0, read);
+                // sync flush: every frame holds all the input given so far
+                deflate(deflater, false, frame, out, stats);
+            }
+            deflater.finish();
+            deflate(deflater, true, frame, out, stats);
+            out.writeInt(0);
+            stats.wireBytes += 4;
+        } finally {
+            deflater.end();
+        }
+        return stats;
+    }
+
+    /**
+     * Receives size bytes sent by {@link #send} and writes them out
+     */
+    public static Stats receive(DataInputStream in, long size, byte codec, OutputStream out) throws IOException {
+        Stats stats = new Stats(codec);
+        byte[] buffer = new byte[FRAME_SIZE];
+        if (codec == RAW) {
+            copy(in, size, buffer, out, stats);
+            stats.wireBytes = stats.rawBytes;
+            return stats;
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Unknown codec: " + codec);
+        }
+
+        Inflater inflater = new Inflater();
+        byte[] frame = new byte[FRAME_SIZE + 1024];
+        try {
+            for (int length = in.readInt(); length != 0; length = in.readInt()) {
+                if (length < 0 || length > frame.length) {
+                    throw new IOException("Wrong frame length: " + length);
+                }
+                in.readFully(frame, 0, length);
+                stats.wireBytes += length + 4;
+                inflater.setInput(frame, 0, length);
+                while (true) {
+                    long start = THREADS.getCurrentThreadCpuTime();
+                    int inflated = inflater.inflate(buffer);
+                    stats.cpuNanos += THREADS.getCurrentThreadCpuTime() - start;
+                    if (inflated == 0) {
+                        break;
+                    }
+                    stats.rawBytes += inflated;
+                    if (stats.rawBytes > size) {
+                        throw new IOException("Data is longer than " + size);
+                    }
+                    out.write(buffer, 0, inflated);
+                }
+            }
+            stats.wireBytes += 4;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        if (stats.rawBytes != size) {
+            throw new IOException(String.format("Expected %d bytes, got %d", size, stats.rawBytes));
+        }
+        return stats;
+    }
+
+    /**
+     * Writes out everything the deflater has for its input, all of it once it is finishing
+     */
+    private static void deflate(Deflater deflater, boolean finishing, byte[] frame, DataOutputStream out, Stats stats)
+            throws IOException {
+        while (true) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            int length = deflater.deflate(frame, 0, frame.length, Deflater.SYNC_FLUSH);
+            stats.cpuNanos += THREADS.getCurrentThreadCpuTime() - start;
+            if (length > 0) {
+                out.writeInt(length);
+                out.write(frame, 0, length);
+                stats.wireBytes += length + 4;
+            }
+            // a full frame means the deflater may have more
+            if (length < frame.length && (!finishing || deflater.finished())) {
+                return;
+            }
+        }
+    }
+
+    private static void copy(InputStream in, long size, byte[] buffer, OutputStream out, Stats stats)
+            throws IOException {
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, read);
+            left -= read;
+            stats.rawBytes += read;
+        }
+    }
+
+    /**
+     * Data and wire bytes of one transfer and the CPU time spent in the codec
+     */
+    public static class Stats {
+        private final byte codec;
+        private long rawBytes;
+        private long wireBytes;
+        private long cpuNanos;
+
+        private Stats(byte codec) {
+            this.codec = codec;
+        }
+
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        @Override
+        public String toString() {
+            if (codec == RAW) {
+                return String.format("%d bytes, not compressed", rawBytes);
+            }
+            return String.format("%d -> %d bytes (%.1f%%), codec cpu %d ms", rawBytes, wireBytes,
+                    rawBytes == 0 ? 100.0 : wireBytes * 100.0 / rawBytes, cpuNanos / 1_000_000);
+        }
+    }
+}
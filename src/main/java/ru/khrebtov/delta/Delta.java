@@ -0,0 +1,226 @@
+package ru.khrebtov.delta;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Delta stream: literal data and references to blocks of the base file,
+ * ended by {@link #END}. The receiver rebuilds the new file from the base and the stream.
+ * <pre>
+ * LITERAL int length, bytes
+ * BLOCK   int index
+ * END
+ * </pre>
+ */
+public class Delta {
+    public static final byte LITERAL = 1;
+    public static final byte BLOCK = 2;
+    public static final byte END = 3;
+    public static final int MAX_LITERAL = 64 * 1024;
+
+    /**
+     * What the encoder sent
+     */
+    public static class Stats {
+        private long literalBytes;
+        private long blocks;
+
+        public long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+    }
+
+    /**
+     * The delta does not fit the base or the announced size. Thrown right after the offending op
+     * is read, so the rest of the stream can still be read with {@link #skip}
+     */
+    public static class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Writes the delta of the new content against the signature of the base
+     * @param digest updated with the whole new content
+     */
+    public static Stats encode(Signature signature, InputStream in, DataOutputStream out, MessageDigest digest)
+            throws IOException {
+        Stats stats = new Stats();
+        int blockSize = signature.getBlockSize();
+        byte[] buffer = new byte[Math.max(4 * blockSize, 256 * 1024)];
+        int limit = 0;
+        int position = 0;
+        // start of literal bytes not sent yet
+        int literal = 0;
+        boolean eof = false;
+        RollingChecksum sum = null;
+
+        while (true) {
+            if (limit - position <= blockSize && !eof) {
+                // the window reached the end of the buffer: send the pending literal, move the rest to the front
+                literal(buffer, literal, position, out, stats);
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+                literal = 0;
+                while (limit < buffer.length) {
+                    int read = in.read(buffer, limit, buffer.length - limit);
+                    if (read < 0) {
+                        eof = true;
+                        break;
+                    }
+                    digest.update(buffer, limit, read);
+                    limit += read;
+                }
+                continue;
+            }
+            if (limit - position < blockSize) {
+                break;
+            }
+            if (sum == null) {
+                sum = RollingChecksum.of(buffer, position, blockSize);
+            }
+            int block = signature.find(sum.value(), buffer, position, blockSize);
+            if (block >= 0) {
+                literal(buffer, literal, position, out, stats);
+                block(block, out, stats);
+                position += blockSize;
+                literal = position;
+                sum = null;
+                continue;
+            }
+            if (position + blockSize == limit) {
+                break;
+            }
+            sum.roll(buffer[position], buffer[position + blockSize]);
+            position++;
+            if (position - literal >= MAX_LITERAL) {
+                literal(buffer, literal, position, out, stats);
+                literal = position;
+            }
+        }
+
+        // a tail shorter than a block can still be the short last block of the base
+        int tail = limit - position;
+        if (tail > 0 && tail < blockSize) {
+            int block = signature.find(RollingChecksum.of(buffer, position, tail).value(), buffer, position, tail);
+            if (block >= 0) {
+                literal(buffer, literal, position, out, stats);
+                block(block, out, stats);
+                literal = limit;
+            }
+        }
+        literal(buffer, literal, limit, out, stats);
+        out.writeByte(END);
+        return stats;
+    }
+
+    /**
+     * Rebuilds the new content from the base and the delta stream
+     * @param maxSize the announced size of the new content, a longer stream is refused
+     * @return SHA-256 of the rebuilt content
+     * @throws MismatchException if the delta does not fit, other IOExceptions leave the stream unreadable
+     */
+    public static byte[] apply(DataInputStream in, SeekableByteChannel base, Signature signature,
+                               OutputStream out, long maxSize) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[Math.max(MAX_LITERAL, signature.getBlockSize())];
+        long written = 0;
+        while (true) {
+            byte op = in.readByte();
+            int length;
+            if (op == END) {
+                return digest.digest();
+            } else if (op == LITERAL) {
+                length = in.readInt();
+                if (length <= 0 || length > MAX_LITERAL) {
+                    throw new IOException("Wrong literal length: " + length);
+                }
+                in.readFully(buffer, 0, length);
+            } else if (op == BLOCK) {
+                int block = in.readInt();
+                if (block < 0 || block >= signature.getCount()) {
+                    throw new MismatchException("Wrong block: " + block);
+                }
+                length = signature.getLength(block);
+                ByteBuffer wrapper = ByteBuffer.wrap(buffer, 0, length);
+                base.position((long) block * signature.getBlockSize());
+                while (wrapper.hasRemaining()) {
+                    if (base.read(wrapper) < 0) {
+                        throw new MismatchException("Base file changed");
+                    }
+                }
+            } else {
+                throw new IOException("Wrong delta op: " + op);
+            }
+            written += length;
+            if (written > maxSize) {
+                throw new MismatchException("Delta is longer than " + maxSize);
+            }
+            digest.update(buffer, 0, length);
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Reads the rest of a delta stream up to its END without applying it
+     */
+    public static void skip(DataInputStream in) throws IOException {
+        byte[] buffer = new byte[MAX_LITERAL];
+        while (true) {
+            byte op = in.readByte();
+            if (op == END) {
+                return;
+            } else if (op == LITERAL) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_LITERAL) {
+                    throw new IOException("Wrong literal length: " + length);
+                }
+                in.readFully(buffer, 0, length);
+            } else if (op == BLOCK) {
+                in.readInt();
+            } else {
+                throw new IOException("Wrong delta op: " + op);
+            }
+        }
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void literal(byte[] buffer, int from, int to, DataOutputStream out, Stats stats)
+            throws IOException {
+        for (int start = from; start < to; start += MAX_LITERAL) {
+            int length = Math.min(MAX_LITERAL, to - start);
+            out.writeByte(LITERAL);
+            out.writeInt(length);
+            out.write(buffer, start, length);
+            stats.literalBytes += length;
+        }
+    }
+
+    private static void block(int block, DataOutputStream out, Stats stats) throws IOException {
+        out.writeByte(BLOCK);
+        out.writeInt(block);
+        stats.blocks++;
+    }
+}
@@ -0,0 +1,39 @@
+package ru.khrebtov.delta;
+
+/**
+ * rsync weak checksum: two 16-bit sums over a window that move by one byte in O(1)
+ */
+public class RollingChecksum {
+    private final int length;
+    private int a;
+    private int b;
+
+    private RollingChecksum(int length) {
+        this.length = length;
+    }
+
+    public static RollingChecksum of(byte[] data, int offset, int length) {
+        RollingChecksum sum = new RollingChecksum(length);
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            sum.a += x;
+            sum.b += (length - i) * x;
+        }
+        sum.a &= 0xffff;
+        sum.b &= 0xffff;
+        return sum;
+    }
+
+    /**
+     * Moves the window one byte forward
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xff;
+        a = (a - x + (in & 0xff)) & 0xffff;
+        b = (b - length * x + a) & 0xffff;
+    }
+
+    public int value() {
+        return a | b << 16;
+    }
+}
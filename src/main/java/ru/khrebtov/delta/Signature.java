@@ -0,0 +1,150 @@
+package ru.khrebtov.delta;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block signatures of the base file: weak rolling checksum and MD5 of every block.
+ * The last block may be shorter than the others.
+ */
+public class Signature {
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+    public static final int MAX_BLOCKS = 4 * 1024 * 1024;
+    private static final int STRONG_LENGTH = 16;
+
+    private final int blockSize;
+    private final long baseSize;
+    private final int[] weak;
+    private final byte[][] strong;
+    // weak checksum -> blocks having it, built on the side that searches
+    private Map<Integer, int[]> lookup;
+
+    private Signature(int blockSize, long baseSize, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.baseSize = baseSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Block size about the square root of the file size: fewer signatures
+     * for big files, finer matches for small ones
+     */
+    public static int blockSize(long baseSize) {
+        long size = (long) Math.sqrt(baseSize);
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    public static Signature compute(InputStream base, long baseSize) throws IOException {
+        int blockSize = blockSize(baseSize);
+        int count = (int) ((baseSize + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            int length = (int) Math.min(blockSize, baseSize - (long) i * blockSize);
+            if (base.readNBytes(block, 0, length) != length) {
+                throw new IOException("Base file is shorter than " + baseSize);
+            }
+            weak[i] = RollingChecksum.of(block, 0, length).value();
+            strong[i] = strong(block, 0, length);
+        }
+        return new Signature(blockSize, baseSize, weak, strong);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeLong(baseSize);
+        out.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong[i]);
+        }
+    }
+
+    /**
+     * Reads a signature after its block size, which the caller has already read
+     */
+    public static Signature read(int blockSize, DataInputStream in) throws IOException {
+        long baseSize = in.readLong();
+        int count = in.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0 || count > MAX_BLOCKS
+                || count != (baseSize + blockSize - 1) / blockSize) {
+            throw new IOException("Wrong signature");
+        }
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong[i]);
+        }
+        return new Signature(blockSize, baseSize, weak, strong);
+    }
+
+    /**
+     * Base block equal to the window, -1 if there is none.
+     * The strong hash is computed only when the weak checksum matches
+     */
+    public int find(int weakSum, byte[] data, int offset, int length) {
+        if (lookup == null) {
+            lookup = new HashMap<>();
+            for (int i = 0; i < weak.length; i++) {
+                int[] blocks = lookup.get(weak[i]);
+                int[] grown = blocks == null ? new int[1] : Arrays.copyOf(blocks, blocks.length + 1);
+                grown[grown.length - 1] = i;
+                lookup.put(weak[i], grown);
+            }
+        }
+        int[] blocks = lookup.get(weakSum);
+        if (blocks == null) {
+            return -1;
+        }
+        byte[] hash = null;
+        for (int block : blocks) {
+            if (getLength(block) != length) {
+                continue;
+            }
+            if (hash == null) {
+                hash = strong(data, offset, length);
+            }
+            if (Arrays.equals(hash, strong[block])) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getBaseSize() {
+        return baseSize;
+    }
+
+    public int getCount() {
+        return weak.length;
+    }
+
+    public int getLength(int block) {
+        return (int) Math.min(blockSize, baseSize - (long) block * blockSize);
+    }
+
+    private static byte[] strong(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, offset, length);
+            return md5.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,702 @@
+package ru.khrebtov.index;
+
+import ru.khrebtov.catalog.Catalog;
+import ru.khrebtov.catalog.FileRecord;
+import ru.khrebtov.storage.DedupStorage;
+import ru.khrebtov.storage.Manifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * In-memory tree of the storage root. Built once by {@link #start()} and kept fresh
+ * by a WatchService thread; when the watcher loses events (OVERFLOW) the whole tree is rescanned.
+ * Dot entries (.chunks, .uploads) belong to the server and are not indexed.
+ * Names of all entries are also kept in a {@link NameIndex} for search.
+ * Every directory holds the total size of its subtree, updated along the path on each change,
+ * so directory sizes cost nothing to query.
+ * <p>
+ * Reads never touch the disk and need no lock, changes are applied under the index monitor.
+ * A server that changes the tree itself calls {@link #refresh(Path)} so its next
+ * query sees the change without waiting for the watch event.
+ * <p>
+ * With a {@link Catalog} every change is also written there, and the next start loads the tree
+ * from the catalog instead of walking the disk. Only the directories whose modification time
+ * differs from the catalogued one (entries added or removed while the server was down) are rescanned;
+ * a file rewritten in place while the server was down keeps its catalogued size until it changes again.
+ * <p>
+ * {@link ChangeListener}s hear about every change applied to the tree.
+ */
+public class DirectoryIndex implements AutoCloseable {
+    public enum Sort {
+        // the order of the children map, no key
+        NAME(null),
+        // largest first
+        SIZE(Entry::getSize),
+        // newest first
+        DATE(Entry::getModified);
+
+        // read once per entry before sorting, sizes and times change under a running sort
+        private final ToLongFunction<Entry> key;
+
+        Sort(ToLongFunction<Entry> key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Called on the thread that applies the change, under the index monitor: must return quickly
+     */
+    public interface ChangeListener {
+        enum Change {
+            CREATED, MODIFIED, DELETED,
+            // events were lost, anything may have changed
+            RESCANNED
+        }
+
+        /**
+         * @param path relative to the root, "/" separated, "" for the root
+         */
+        void changed(Change change, String path);
+    }
+
+    private final DedupStorage storage;
+    private final Path root;
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final WatchService watcher;
+    // null when the tree is not persisted
+    private final Catalog catalog;
+    private volatile Entry tree;
+    private volatile NameIndex names;
+
+    public DirectoryIndex(DedupStorage storage) throws IOException {
+        this(storage, null);
+    }
+
+    public DirectoryIndex(DedupStorage storage, Catalog catalog) throws IOException {
+        this.storage = storage;
+        this.root = storage.getRoot();
+        this.watcher = root.getFileSystem().newWatchService();
+        this.catalog = catalog;
+    }
+
+    /**
+     * Loads the tree from the catalog or scans the root, then starts the watcher thread
+     */
+    public void start() throws IOException {
+        Files.createDirectories(root);
+        if (catalog != null && !catalog.isEmpty()) {
+            load();
+        } else {
+            rescan();
+        }
+        Thread thread = new Thread(this::watch, "directory-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Entries of a directory sorted by name, null if there is no such directory
+     */
+    public List<Entry> list(Path dir) {
+        Entry entry = find(dir);
+        if (entry == null || !entry.isDirectory()) {
+            return null;
+        }
+        return new ArrayList<>(entry.children.values());
+    }
+
+    /**
+     * One page of a directory listing, null if there is no such directory.
+     * Every order is put into an array once, name order straight from the sorted children,
+     * and later pages index into it until the directory changes
+     * @param page from 0
+     */
+    public List<Entry> page(Path dir, Sort sort, int page, int pageSize) {
+        Entry entry = find(dir);
+        if (entry == null || !entry.isDirectory()) {
+            return null;
+        }
+        long skip = (long) page * pageSize;
+        List<Entry> result = new ArrayList<>(pageSize);
+        Entry[] sorted = entry.sorted(sort);
+        for (long i = skip; i < sorted.length && result.size() < pageSize; i++) {
+            result.add(sorted[(int) i]);
+        }
+        return result;
+    }
+
+    public Entry get(Path path) {
+        return find(path);
+    }
+
+    public boolean exists(Path path) {
+        return find(path) != null;
+    }
+
+    public boolean isDirectory(Path path) {
+        Entry entry = find(path);
+        return entry != null && entry.isDirectory();
+    }
+
+    public boolean isRegularFile(Path path) {
+        Entry entry = find(path);
+        return entry != null && !entry.isDirectory();
+    }
+
+    /**
+     * Size of the file content (for a manifest - of the file it stands for),
+     * for a directory - of all files under it, -1 if there is no such path
+     */
+    public long size(Path path) {
+        Entry entry = find(path);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Re-reads one path from the disk: a file, a whole directory subtree or a removal
+     */
+    public synchronized void refresh(Path path) {
+        Path relative = relativize(path);
+        if (relative == null || isHidden(relative)) {
+            return;
+        }
+        if (relative.toString().isEmpty()) {
+            rescan();
+            return;
+        }
+        Path parentPath = root.resolve(relative).getParent();
+        Entry parent = find(parentPath);
+        if (parent == null || !parent.isDirectory()) {
+            // the parent was created after our last look at it
+            refresh(parentPath);
+            return;
+        }
+        String name = relative.getFileName().toString();
+        Entry entry = scan(root.resolve(relative), parent.children.get(name));
+        Entry old = entry == null ? parent.children.remove(name) : parent.children.put(name, entry);
+        if (old != null) {
+            indexNames(names, relative.toString(), old, false);
+        }
+        if (entry != null) {
+            indexNames(names, relative.toString(), entry, true);
+        }
+        parent.touch(root.resolve(relative).getParent());
+        persist(relative.toString(), old, entry, parent);
+        if (old == null || entry == null || !old.sameAs(entry)) {
+            // the server's own refresh and the watch event report a change twice, the second is no news
+            fireChanged(old == null ? ChangeListener.Change.CREATED
+                    : entry == null ? ChangeListener.Change.DELETED : ChangeListener.Change.MODIFIED,
+                    relative.toString().replace(File.separatorChar, '/'));
+        }
+
+        long delta = (entry == null ? 0 : entry.size) - (old == null ? 0 : old.size);
+        // the parent was found above, so every directory on the way is in the tree
+        Entry ancestor = tree;
+        ancestor.changed(delta);
+        if (relative.getParent() != null) {
+            for (Path part : relative.getParent()) {
+                ancestor = ancestor.children.get(part.toString());
+                ancestor.changed(delta);
+            }
+        }
+    }
+
+    /**
+     * Builds the tree from scratch, registering every directory with the watcher
+     */
+    public synchronized void rescan() {
+        Entry fresh = scan(root, tree);
+        if (fresh == null) {
+            fresh = new Entry("", true, 0, 0, 0, null);
+        }
+        NameIndex freshNames = new NameIndex();
+        for (Entry child : fresh.children.values()) {
+            indexNames(freshNames, child.name, child, true);
+        }
+        tree = fresh;
+        names = freshNames;
+        fireChanged(ChangeListener.Change.RESCANNED, "");
+        if (catalog != null) {
+            List<FileRecord> records = new ArrayList<>();
+            collect("", fresh, records);
+            try {
+                catalog.rewrite(records);
+            } catch (IOException e) {
+                System.out.println("Catalog is not written: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Builds the tree from the catalog, then rescans the directories changed since it was written
+     */
+    private synchronized void load() {
+        Map<String, Entry> directories = new HashMap<>();
+        catalog.forEach(record -> {
+            Entry entry = new Entry(record.getName(), record.isDirectory(), record.getSize(),
+                    record.getCreated(), record.getModified(), record.getHash());
+            String path = record.getPath();
+            if (entry.isDirectory()) {
+                directories.put(path, entry);
+            }
+            if (!path.isEmpty()) {
+                int slash = path.lastIndexOf('/');
+                Entry parent = directories.get(slash < 0 ? "" : path.substring(0, slash));
+                if (parent != null) {
+                    parent.children.put(entry.name, entry);
+                }
+            }
+        });
+        Entry fresh = directories.get("");
+        if (fresh == null) {
+            rescan();
+            return;
+        }
+        sumSizes(fresh);
+
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, Entry> directory : directories.entrySet()) {
+            Path path = root.resolve(directory.getKey());
+            try {
+                long modified = Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis();
+                path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                if (modified != directory.getValue().getModified()) {
+                    stale.add(directory.getKey());
+                }
+            } catch (IOException e) {
+                stale.add(directory.getKey());
+            }
+        }
+        NameIndex freshNames = new NameIndex();
+        for (Entry child : fresh.children.values()) {
+            indexNames(freshNames, child.name, child, true);
+        }
+        tree = fresh;
+        names = freshNames;
+
+        // a parent is rescanned with its whole subtree, its stale descendants need nothing more
+        stale.sort(Comparator.naturalOrder());
+        String last = null;
+        for (String path : stale) {
+            if (last != null && (last.isEmpty() || path.startsWith(last + "/"))) {
+                continue;
+            }
+            last = path;
+            refresh(root.resolve(path));
+        }
+        System.out.println("Directory index loaded from the catalog, " + stale.size() + " directories rescanned");
+    }
+
+    private static long sumSizes(Entry entry) {
+        if (entry.isDirectory()) {
+            long size = 0;
+            for (Entry child : entry.children.values()) {
+                size += sumSizes(child);
+            }
+            entry.size = size;
+        }
+        return entry.size;
+    }
+
+    /**
+     * Writes a refreshed path to the catalog: the old subtree goes, the new one comes in
+     * together with the parent's new modification time
+     */
+    private void persist(String path, Entry old, Entry entry, Entry parent) {
+        if (catalog == null) {
+            return;
+        }
+        List<FileRecord> deleted = new ArrayList<>();
+        // a file changed in place is simply overwritten
+        if (old != null && (entry == null || old.isDirectory() || entry.isDirectory())) {
+            collect(path, old, deleted);
+        }
+        List<FileRecord> records = new ArrayList<>();
+        if (entry != null) {
+            collect(path, entry, records);
+        }
+        String parentPath = path.lastIndexOf('/') < 0 ? "" : path.substring(0, path.lastIndexOf('/'));
+        records.add(record(parentPath, parent));
+        try {
+            for (FileRecord record : deleted) {
+                catalog.delete(record.getPath());
+            }
+            for (FileRecord record : records) {
+                catalog.put(record);
+            }
+        } catch (IOException e) {
+            System.out.println("Catalog is not updated: " + path + " " + e.getMessage());
+        }
+    }
+
+    private static void collect(String path, Entry entry, List<FileRecord> records) {
+        records.add(record(path, entry));
+        if (entry.isDirectory()) {
+            for (Entry child : entry.children.values()) {
+                collect(path.isEmpty() ? child.name : path + "/" + child.name, child, records);
+            }
+        }
+    }
+
+    private static FileRecord record(String path, Entry entry) {
+        // directory sizes are summed again on load
+        return new FileRecord(path, entry.isDirectory(), entry.isDirectory() ? 0 : entry.size,
+                entry.created, entry.modified, entry.hash, FileRecord.ownerOf(path));
+    }
+
+    /**
+     * Metadata of a path relative to the root ("a/b.txt"), answered by the catalog when there is one
+     * @return null if there is no such path
+     */
+    public FileRecord lookup(String path) {
+        if (catalog != null) {
+            return catalog.get(path);
+        }
+        Entry entry = find(root.resolve(path));
+        return entry == null ? null : record(path, entry);
+    }
+
+    /**
+     * Entries of a directory relative to the root sorted by name, answered by the catalog when there is one
+     * @return null if there is no such directory
+     */
+    public List<FileRecord> lookupList(String path) {
+        if (catalog != null) {
+            return catalog.list(path);
+        }
+        List<Entry> entries = list(root.resolve(path));
+        if (entries == null) {
+            return null;
+        }
+        List<FileRecord> records = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            records.add(record(path.isEmpty() ? entry.name : path + "/" + entry.name, entry));
+        }
+        return records;
+    }
+
+    /**
+     * Files and directories by name, see {@link NameIndex#search}
+     */
+    public int search(String query, int limit, NameIndex.ResultConsumer consumer) {
+        return names.search(query, limit, consumer);
+    }
+
+    /**
+     * Search inside one top-level directory, see {@link NameIndex#search(String, String, int, NameIndex.ResultConsumer)}
+     */
+    public int search(String scope, String query, int limit, NameIndex.ResultConsumer consumer) {
+        return names.search(scope, query, limit, consumer);
+    }
+
+    /**
+     * @return null if the tree is not persisted
+     */
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Stops the watcher and closes the catalog
+     */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        if (catalog != null) {
+            catalog.close();
+        }
+    }
+
+    private void fireChanged(ChangeListener.Change change, String path) {
+        for (ChangeListener listener : listeners) {
+            listener.changed(change, path);
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were dropped, nothing in the tree can be trusted
+                    rescan();
+                    break;
+                }
+                refresh(dir.resolve((Path) event.context()));
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Only a file new or modified since the known entry is opened, to tell a manifest from
+     * a plain file; otherwise its content size and hash are taken from the known entry
+     * @param known the entry of the path in the tree (or the catalog), null if there is none
+     * @return entry for the path as it is on the disk now, null if it is gone
+     */
+    private Entry scan(Path path, Entry known) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+        String name = path.equals(root) ? "" : path.getFileName().toString();
+        long created = attributes.creationTime().toMillis();
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (!attributes.isDirectory()) {
+            if (known != null && !known.isDirectory() && known.modified == modified) {
+                return new Entry(name, false, known.size, created, modified, known.hash);
+            }
+            long size = attributes.size();
+            String hash = null;
+            try {
+                Manifest manifest = storage.manifest(path);
+                if (manifest != null) {
+                    size = manifest.getSize();
+                    hash = manifest.getHash();
+                }
+            } catch (IOException e) {
+                // unreadable now, indexed as a plain file until it changes
+            }
+            return new Entry(name, false, size, created, modified, hash);
+        }
+
+        Entry dir = new Entry(name, true, 0, created, modified, null);
+        try {
+            // registered before listing: a file created in between is both listed and reported
+            path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files) {
+                    if (file.getFileName().toString().startsWith(".")) {
+                        continue;
+                    }
+                    Entry child = scan(file, known == null || !known.isDirectory()
+                            ? null : known.children.get(file.getFileName().toString()));
+                    if (child != null) {
+                        dir.children.put(child.name, child);
+                        dir.size += child.size;
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Directory is not indexed: " + path + " " + e.getMessage());
+        }
+        return dir;
+    }
+
+    private static void indexNames(NameIndex index, String path, Entry entry, boolean add) {
+        if (add) {
+            index.add(entry.name, path);
+        } else {
+            index.remove(entry.name, path);
+        }
+        if (entry.isDirectory()) {
+            for (Entry child : entry.children.values()) {
+                indexNames(index, path + "/" + child.name, child, add);
+            }
+        }
+    }
+
+    private Entry find(Path path) {
+        Path relative = relativize(path);
+        if (relative == null || isHidden(relative)) {
+            return null;
+        }
+        Entry entry = tree;
+        if (relative.toString().isEmpty()) {
+            return entry;
+        }
+        for (Path part : relative) {
+            if (!entry.isDirectory()) {
+                return null;
+            }
+            entry = entry.children.get(part.toString());
+            if (entry == null) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    private Path relativize(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        return absolute.startsWith(root) ? root.relativize(absolute) : null;
+    }
+
+    private static boolean isHidden(Path relative) {
+        for (Path part : relative) {
+            if (part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * File or directory as it was at the last scan
+     */
+    public static class Entry {
+        private final String name;
+        private final boolean directory;
+        private final long created;
+        // of a directory - moved forward by changes in it
+        private volatile long modified;
+        // see DedupStorage#hash, null if unknown
+        private final String hash;
+        // for a directory - the sum over its subtree, changed only by the index thread
+        private volatile long size;
+        // null for files
+        private final ConcurrentNavigableMap<String, Entry> children;
+        // bumped on every change under this directory, invalidates the sorted views
+        private volatile long version;
+        // by Sort ordinal, created on the first page asked for
+        private volatile AtomicReferenceArray<SortedView> views;
+
+        Entry(String name, boolean directory, long size, long created, long modified, String hash) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+            this.modified = modified;
+            this.hash = hash;
+            this.children = directory ? new ConcurrentSkipListMap<>() : null;
+        }
+
+        private void touch(Path path) {
+            try {
+                modified = Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis();
+            } catch (IOException e) {
+                // removed, its parent hears about it next
+            }
+        }
+
+        private void changed(long delta) {
+            size += delta;
+            version++;
+        }
+
+        private boolean sameAs(Entry other) {
+            return directory == other.directory && size == other.size && modified == other.modified
+                    && Objects.equals(hash, other.hash);
+        }
+
+        private Entry[] sorted(Sort sort) {
+            AtomicReferenceArray<SortedView> sortedViews = views;
+            if (sortedViews == null) {
+                sortedViews = new AtomicReferenceArray<>(Sort.values().length);
+                views = sortedViews;
+            }
+            SortedView current = sortedViews.get(sort.ordinal());
+            long currentVersion = version;
+            if (current == null || current.version != currentVersion) {
+                current = new SortedView(currentVersion, sort(sort));
+                sortedViews.set(sort.ordinal(), current);
+            }
+            return current.entries;
+        }
+
+        private Entry[] sort(Sort sort) {
+            Entry[] entries = children.values().toArray(new Entry[0]);
+            if (sort.key == null) {
+                return entries;
+            }
+            long[] keys = new long[entries.length];
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                keys[i] = sort.key.applyAsLong(entries[i]);
+                order[i] = i;
+            }
+            // descending key, then the name order the entries came in
+            Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[b], keys[a]) : Integer.compare(a, b));
+            Entry[] sorted = new Entry[entries.length];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = entries[order[i]];
+            }
+            return sorted;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Number of entries right in this directory
+         */
+        public int getCount() {
+            return directory ? children.size() : 0;
+        }
+    }
+
+    private static class SortedView {
+        private final long version;
+        private final Entry[] entries;
+
+        private SortedView(long version, Entry[] entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+}
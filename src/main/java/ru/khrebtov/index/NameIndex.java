@@ -0,0 +1,216 @@
+package ru.khrebtov.index;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Search over file names (the last path component, case-insensitive).
+ * Names are kept sorted for prefix queries, and every name is listed under each of its
+ * trigrams, so substring and glob queries only check the names sharing the rarest trigram
+ * of the query instead of walking the tree.
+ * <p>
+ * Entries inside each top-level directory (a user directory) are indexed apart, a search
+ * of one of them never looks at the names of the others.
+ * <p>
+ * One thread changes the index, queries may run concurrently with it.
+ */
+public class NameIndex {
+    public interface ResultConsumer {
+        /**
+         * @return false to stop the search
+         */
+        boolean accept(String path);
+    }
+
+    private static final int GRAM = 3;
+
+    // top-level directory -> names inside it, "" for the entries of the root itself
+    private final Map<String, Scope> scopes = new ConcurrentHashMap<>();
+
+    public void add(String name, String path) {
+        scopes.computeIfAbsent(scopeOf(path), s -> new Scope()).add(name, path);
+    }
+
+    public void remove(String name, String path) {
+        String scope = scopeOf(path);
+        Scope names = scopes.get(scope);
+        if (names != null && names.remove(name, path)) {
+            scopes.remove(scope);
+        }
+    }
+
+    /**
+     * Paths whose name contains the query, or matches it when the query has * or ? in it.
+     * Results are handed out as they are found
+     * @return number of results
+     */
+    public int search(String query, int limit, ResultConsumer consumer) {
+        int found = 0;
+        boolean[] stopped = {false};
+        for (Scope names : scopes.values()) {
+            found += names.search(query, limit - found, path -> {
+                stopped[0] = !consumer.accept(path);
+                return !stopped[0];
+            });
+            if (stopped[0] || found >= limit) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Search inside one top-level directory, see {@link #search(String, int, ResultConsumer)}
+     * @param scope name of the directory
+     */
+    public int search(String scope, String query, int limit, ResultConsumer consumer) {
+        Scope names = scopes.get(scope);
+        return names == null ? 0 : names.search(query, limit, consumer);
+    }
+
+    private static String scopeOf(String path) {
+        int slash = path.indexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static final class Scope {
+        // name -> relative paths of files with this name
+        private final NavigableMap<String, Set<String>> names = new ConcurrentSkipListMap<>();
+        // trigram -> names containing it
+        private final Map<String, Set<String>> grams = new ConcurrentHashMap<>();
+
+        void add(String name, String path) {
+            String key = name.toLowerCase(Locale.ROOT);
+            Set<String> paths = names.get(key);
+            if (paths == null) {
+                paths = ConcurrentHashMap.newKeySet();
+                names.put(key, paths);
+                for (int i = 0; i + GRAM <= key.length(); i++) {
+                    grams.computeIfAbsent(key.substring(i, i + GRAM), g -> ConcurrentHashMap.newKeySet()).add(key);
+                }
+            }
+            paths.add(path);
+        }
+
+        /**
+         * @return true if no name is left
+         */
+        boolean remove(String name, String path) {
+            String key = name.toLowerCase(Locale.ROOT);
+            Set<String> paths = names.get(key);
+            if (paths == null || !paths.remove(path) || !paths.isEmpty()) {
+                return false;
+            }
+            names.remove(key);
+            for (int i = 0; i + GRAM <= key.length(); i++) {
+                Set<String> gramNames = grams.get(key.substring(i, i + GRAM));
+                if (gramNames != null) {
+                    gramNames.remove(key);
+                    if (gramNames.isEmpty()) {
+                        grams.remove(key.substring(i, i + GRAM));
+                    }
+                }
+            }
+            return names.isEmpty();
+        }
+
+        int search(String query, int limit, ResultConsumer consumer) {
+            String key = query.toLowerCase(Locale.ROOT);
+            if (key.indexOf('*') < 0 && key.indexOf('?') < 0) {
+                return emit(candidates(key), name -> name.contains(key), limit, consumer);
+            }
+            Pattern glob = globToRegex(key);
+            String prefix = literalPrefix(key);
+            String literal = longestLiteral(key);
+            Iterable<String> candidates = literal.length() >= GRAM || prefix.isEmpty()
+                    ? candidates(literal)
+                    : names.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet();
+            return emit(candidates, name -> glob.matcher(name).matches(), limit, consumer);
+        }
+
+        /**
+         * Names that may contain the literal: those under its rarest trigram,
+         * all names when it is too short to have one
+         */
+        private Iterable<String> candidates(String literal) {
+            if (literal.length() < GRAM) {
+                return names.keySet();
+            }
+            Set<String> best = null;
+            for (int i = 0; i + GRAM <= literal.length(); i++) {
+                Set<String> gramNames = grams.get(literal.substring(i, i + GRAM));
+                if (gramNames == null) {
+                    return Collections.emptySet();
+                }
+                if (best == null || gramNames.size() < best.size()) {
+                    best = gramNames;
+                }
+            }
+            return best;
+        }
+
+        private int emit(Iterable<String> candidates, Predicate<String> matches, int limit, ResultConsumer consumer) {
+            int found = 0;
+            for (String name : candidates) {
+                if (!matches.test(name)) {
+                    continue;
+                }
+                Set<String> paths = names.get(name);
+                if (paths == null) {
+                    continue;
+                }
+                for (String path : paths) {
+                    if (found >= limit || !consumer.accept(path)) {
+                        return found;
+                    }
+                    found++;
+                }
+            }
+            return found;
+        }
+    }
+
+    private static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static String literalPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') {
+            end++;
+        }
+        return glob.substring(0, end);
+    }
+
+    private static String longestLiteral(String glob) {
+        String longest = "";
+        for (String part : glob.split("[*?]")) {
+            if (part.length() > longest.length()) {
+                longest = part;
+            }
+        }
+        return longest;
+    }
+}
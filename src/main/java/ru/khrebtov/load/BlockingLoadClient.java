@@ -0,0 +1,68 @@
+package ru.khrebtov.load;
+
+import ru.khrebtov.client.StorageConnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * User of the blocking server: all users log in as one account (the password check is cached
+ * after the first login), each uploads over its own file and downloads the shared seed.
+ */
+class BlockingLoadClient implements LoadClient {
+    static final String USER = "load";
+    static final String PASSWORD = "load-password";
+
+    private final StorageConnection connection;
+    private final String name;
+    private final byte[] content;
+
+    BlockingLoadClient(String host, int port, int user, byte[] content) throws IOException {
+        this.connection = new StorageConnection(host, port);
+        this.name = "load-u" + user + ".bin";
+        this.content = content;
+        String status = connection.login(USER, PASSWORD);
+        if (!"OK".equals(status)) {
+            connection.close();
+            throw new IOException("Login failed: " + status);
+        }
+    }
+
+    /**
+     * Registers the load account and uploads the seed file
+     */
+    static void prepare(String host, int port, byte[] seed) throws IOException {
+        try (StorageConnection connection = new StorageConnection(host, port)) {
+            // taken by an earlier run, the login tells if the password fits
+            connection.register(USER, PASSWORD);
+            String status = connection.login(USER, PASSWORD);
+            if (!"OK".equals(status)) {
+                throw new IOException("Login as " + USER + " failed: " + status);
+            }
+            connection.upload(LoadGenerator.SEED, seed);
+        }
+    }
+
+    @Override
+    public long upload() throws IOException {
+        connection.upload(name, content);
+        return content.length;
+    }
+
+    @Override
+    public long download() throws IOException {
+        return connection.download(LoadGenerator.SEED, OutputStream.nullOutputStream());
+    }
+
+    @Override
+    public void command() throws IOException {
+        if (connection.size(LoadGenerator.SEED) < 0) {
+            throw new IOException("Seed file is gone");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+}
@@ -0,0 +1,25 @@
+package ru.khrebtov.load;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * One simulated user connected to a server. Any IOException means the operation failed,
+ * the generator then drops the connection and opens a new one.
+ */
+interface LoadClient extends Closeable {
+    /**
+     * @return payload bytes sent
+     */
+    long upload() throws IOException;
+
+    /**
+     * @return payload bytes received
+     */
+    long download() throws IOException;
+
+    /**
+     * A small command without payload
+     */
+    void command() throws IOException;
+}
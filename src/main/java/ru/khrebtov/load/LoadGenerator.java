@@ -0,0 +1,309 @@
+package ru.khrebtov.load;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator: thousands of simulated users on the client wire protocols of the
+ * blocking, NIO or Netty server, each doing a weighted mix of uploads, downloads and small commands.
+ * Reports throughput, error rates and latency percentiles.
+ * <pre>
+ * java -cp cloud-storage.jar ru.khrebtov.load.LoadGenerator --target netty --users 2000 --duration 60
+ *     --ramp 10 --mix upload=1,download=3,command=6 --size 64 --think 100
+ * </pre>
+ * Every user is a thread with a blocking socket (a small stack keeps thousands of them cheap),
+ * users start evenly over the ramp so the accept queue is not flooded. A failed operation is
+ * counted, its connection dropped and a new one opened after a short pause.
+ */
+public class LoadGenerator {
+    static final String SEED = "load-seed.bin";
+    private static final long THREAD_STACK = 256 * 1024;
+    private static final long RECONNECT_PAUSE_MS = 100;
+
+    enum Target {
+        BLOCKING(6789), NIO(5678), NETTY(4000);
+
+        private final int port;
+
+        Target(int port) {
+            this.port = port;
+        }
+    }
+
+    private Target target = Target.NETTY;
+    private String host = "localhost";
+    private int port;
+    private int users = 100;
+    private int duration = 30;
+    private int ramp = 5;
+    private int report = 5;
+    private int uploadWeight = 1;
+    private int downloadWeight = 3;
+    private int commandWeight = 6;
+    private int sizeKb = 64;
+    private int thinkMs = 100;
+
+    private final LoadStats stats = new LoadStats();
+    private byte[] content;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("options: --target blocking|nio|netty --host H --port P --users N --duration S"
+                    + " --ramp S --mix upload=1,download=3,command=6 --size KB --think MS --report S");
+            return;
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("no value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--target":
+                    target = Target.valueOf(value.toUpperCase());
+                    break;
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--users":
+                    users = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--ramp":
+                    ramp = Integer.parseInt(value);
+                    break;
+                case "--report":
+                    report = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    sizeKb = Integer.parseInt(value);
+                    break;
+                case "--think":
+                    thinkMs = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    parseMix(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (port == 0) {
+            port = target.port;
+        }
+        if (users <= 0 || duration <= 0 || ramp < 0 || report <= 0 || sizeKb < 0 || thinkMs < 0) {
+            throw new IllegalArgumentException("numbers must not be negative");
+        }
+    }
+
+    private void parseMix(String mix) {
+        uploadWeight = downloadWeight = commandWeight = 0;
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("wrong mix " + mix);
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            switch (pair[0].trim()) {
+                case "upload":
+                    uploadWeight = weight;
+                    break;
+                case "download":
+                    downloadWeight = weight;
+                    break;
+                case "command":
+                    commandWeight = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown operation " + pair[0]);
+            }
+        }
+        if (uploadWeight < 0 || downloadWeight < 0 || commandWeight < 0
+                || uploadWeight + downloadWeight + commandWeight == 0) {
+            throw new IllegalArgumentException("wrong mix " + mix);
+        }
+    }
+
+    private void run() throws Exception {
+        content = new byte[sizeKb * 1024];
+        // not compressible, like most of what people store
+        new Random(42).nextBytes(content);
+        prepare();
+        System.out.printf("%d users on %s %s:%d for %d s (ramp %d s), mix upload=%d download=%d command=%d,"
+                        + " %d KB files, think %d ms\n", users, target.name().toLowerCase(), host, port, duration,
+                ramp, uploadWeight, downloadWeight, commandWeight, sizeKb, thinkMs);
+
+        long started = System.nanoTime();
+        List<Thread> threads = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            long delayMs = (long) ramp * 1000 * i / users;
+            Thread thread = new Thread(null, () -> user(user, delayMs), "load-user-" + i, THREAD_STACK);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long end = started + TimeUnit.SECONDS.toNanos(duration);
+        long operations = 0;
+        long errors = 0;
+        for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(report), TimeUnit.NANOSECONDS.toMillis(end - now) + 1));
+            long total = stats.getOperations();
+            long failed = stats.getErrors();
+            System.out.printf("%4d s: %d ops (%.0f ops/s), %d errors\n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), total,
+                    (total - operations) / (double) report, failed - errors);
+            operations = total;
+            errors = failed;
+        }
+        running = false;
+        double seconds = (System.nanoTime() - started) / 1e9;
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        System.out.print(stats.report(seconds));
+    }
+
+    /**
+     * Puts the file every download reads on the server
+     */
+    private void prepare() throws Exception {
+        switch (target) {
+            case BLOCKING:
+                BlockingLoadClient.prepare(host, port, content);
+                break;
+            case NETTY:
+                NettyLoadClient.prepare(host, port, content);
+                break;
+            case NIO:
+                // no upload on the telnet server: the seed is put into its directory, expected to be ./server
+                Path seed = Path.of("server", SEED);
+                if (!Files.exists(seed) || Files.size(seed) != content.length) {
+                    Files.createDirectories(seed.getParent());
+                    Files.write(seed, content);
+                }
+                try (NioLoadClient client = new NioLoadClient(host, port, 0, content.length)) {
+                    // the index picks the file up asynchronously
+                    for (int i = 0; client.stat() != content.length; i++) {
+                        if (i == 50) {
+                            throw new IOException("The server does not see " + seed.toAbsolutePath());
+                        }
+                        Thread.sleep(100);
+                    }
+                }
+                break;
+        }
+    }
+
+    private LoadClient connect(int user) throws IOException {
+        switch (target) {
+            case BLOCKING:
+                return new BlockingLoadClient(host, port, user, content);
+            case NIO:
+                return new NioLoadClient(host, port, user, content.length);
+            default:
+                return new NettyLoadClient(host, port, user, content);
+        }
+    }
+
+    private void user(int user, long delayMs) {
+        if (!pause(delayMs)) {
+            return;
+        }
+        LoadClient client = null;
+        int weights = uploadWeight + downloadWeight + commandWeight;
+        while (running) {
+            if (client == null) {
+                long started = System.nanoTime();
+                try {
+                    client = connect(user);
+                    stats.success(LoadStats.Op.CONNECT, System.nanoTime() - started, 0);
+                } catch (IOException e) {
+                    stats.error(LoadStats.Op.CONNECT);
+                    if (!pause(RECONNECT_PAUSE_MS)) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            int pick = ThreadLocalRandom.current().nextInt(weights);
+            LoadStats.Op op = pick < uploadWeight ? LoadStats.Op.UPLOAD
+                    : pick < uploadWeight + downloadWeight ? LoadStats.Op.DOWNLOAD : LoadStats.Op.COMMAND;
+            long started = System.nanoTime();
+            try {
+                long bytes = 0;
+                switch (op) {
+                    case UPLOAD:
+                        bytes = client.upload();
+                        break;
+                    case DOWNLOAD:
+                        bytes = client.download();
+                        break;
+                    default:
+                        client.command();
+                }
+                stats.success(op, System.nanoTime() - started, bytes);
+            } catch (IOException e) {
+                if (running) {
+                    stats.error(op);
+                }
+                close(client);
+                client = null;
+                if (!pause(RECONNECT_PAUSE_MS)) {
+                    return;
+                }
+                continue;
+            }
+            if (thinkMs > 0 && !pause(ThreadLocalRandom.current().nextLong(thinkMs * 2L + 1))) {
+                break;
+            }
+        }
+        if (client != null) {
+            close(client);
+        }
+    }
+
+    /**
+     * @return false once the run is over
+     */
+    private boolean pause(long ms) {
+        long end = System.currentTimeMillis() + ms;
+        try {
+            for (long left = ms; running && left > 0; left = end - System.currentTimeMillis()) {
+                Thread.sleep(Math.min(left, 200));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return running;
+    }
+
+    private static void close(LoadClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // the connection is being dropped anyway
+        }
+    }
+}
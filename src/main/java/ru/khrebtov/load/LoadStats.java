@@ -0,0 +1,77 @@
+package ru.khrebtov.load;
+
+import ru.khrebtov.metrics.LatencyHistogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of a load run, recorded by all user threads without locks
+ */
+class LoadStats {
+    enum Op {
+        UPLOAD, DOWNLOAD, COMMAND, CONNECT
+    }
+
+    private final Map<Op, LatencyHistogram> latencies = new EnumMap<>(Op.class);
+    private final Map<Op, LongAdder> errors = new EnumMap<>(Op.class);
+    private final LongAdder bytesUp = new LongAdder();
+    private final LongAdder bytesDown = new LongAdder();
+
+    LoadStats() {
+        for (Op op : Op.values()) {
+            latencies.put(op, new LatencyHistogram());
+            errors.put(op, new LongAdder());
+        }
+    }
+
+    void success(Op op, long nanos, long bytes) {
+        latencies.get(op).record(nanos);
+        if (op == Op.UPLOAD) {
+            bytesUp.add(bytes);
+        } else if (op == Op.DOWNLOAD) {
+            bytesDown.add(bytes);
+        }
+    }
+
+    void error(Op op) {
+        errors.get(op).increment();
+    }
+
+    /**
+     * Successful operations, connects excluded
+     */
+    long getOperations() {
+        return latencies.get(Op.UPLOAD).getCount() + latencies.get(Op.DOWNLOAD).getCount()
+                + latencies.get(Op.COMMAND).getCount();
+    }
+
+    long getErrors() {
+        long total = 0;
+        for (LongAdder adder : errors.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    String report(double seconds) {
+        StringBuilder sb = new StringBuilder();
+        long operations = getOperations();
+        long failed = getErrors();
+        sb.append(String.format("%d operations in %.1f s: %.0f ops/s, errors %d (%.2f%%)\n", operations, seconds,
+                operations / seconds, failed, operations + failed == 0 ? 0 : 100.0 * failed / (operations + failed)));
+        sb.append(String.format("upload %.1f MB/s, download %.1f MB/s\n",
+                bytesUp.sum() / seconds / 1024 / 1024, bytesDown.sum() / seconds / 1024 / 1024));
+        sb.append(String.format("%-9s %9s %8s %9s %9s %9s %9s %9s\n",
+                "op", "count", "errors", "mean us", "p50 us", "p99 us", "p999 us", "max us"));
+        for (Op op : Op.values()) {
+            LatencyHistogram histogram = latencies.get(op);
+            sb.append(String.format("%-9s %9d %8d %9d %9d %9d %9d %9d\n", op.name().toLowerCase(),
+                    histogram.getCount(), errors.get(op).sum(), histogram.getMean() / 1000,
+                    histogram.percentile(0.5) / 1000, histogram.percentile(0.99) / 1000,
+                    histogram.percentile(0.999) / 1000, histogram.getMax() / 1000));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package ru.khrebtov.load;
+
+import ru.khrebtov.netty.protocol.FileCommand;
+import ru.khrebtov.netty.protocol.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * User of the Netty server on its binary frames: UPLOAD over the user's own file,
+ * DOWNLOAD of the seed, STAT of the seed as the small command.
+ */
+class NettyLoadClient implements LoadClient {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final String name;
+    private final byte[] content;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    NettyLoadClient(String host, int port, int user, byte[] content) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.name = "load-u" + user + ".bin";
+        this.content = content;
+    }
+
+    /**
+     * Uploads the seed file
+     */
+    static void prepare(String host, int port, byte[] seed) throws IOException {
+        try (NettyLoadClient client = new NettyLoadClient(host, port, 0, seed)) {
+            client.upload(LoadGenerator.SEED, seed);
+        }
+    }
+
+    /**
+     * Size of the seed as the server index sees it, -1 while it is not indexed yet
+     */
+    long stat() throws IOException {
+        write(FileCommand.STAT, 0, LoadGenerator.SEED);
+        Frame frame = read();
+        return frame.getCommand() == FileCommand.OK ? frame.getSize() : -1;
+    }
+
+    @Override
+    public long upload() throws IOException {
+        return upload(name, content);
+    }
+
+    @Override
+    public long download() throws IOException {
+        write(FileCommand.DOWNLOAD, 0, LoadGenerator.SEED);
+        long size = expect(FileCommand.FILE).getSize();
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            left -= read;
+        }
+        return size;
+    }
+
+    @Override
+    public void command() throws IOException {
+        write(FileCommand.STAT, 0, LoadGenerator.SEED);
+        expect(FileCommand.OK);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private long upload(String target, byte[] bytes) throws IOException {
+        writeHeader(FileCommand.UPLOAD, bytes.length, target);
+        out.write(bytes);
+        out.flush();
+        expect(FileCommand.OK);
+        return bytes.length;
+    }
+
+    private void write(FileCommand command, long size, String text) throws IOException {
+        writeHeader(command, size, text);
+        out.flush();
+    }
+
+    private void writeHeader(FileCommand command, long size, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(Frame.HEADER_LENGTH + bytes.length);
+        out.writeByte(command.code());
+        out.writeLong(size);
+        out.write(bytes);
+    }
+
+    private Frame read() throws IOException {
+        int length = in.readInt();
+        FileCommand command = FileCommand.of(in.readByte());
+        long size = in.readLong();
+        byte[] text = new byte[length - Frame.HEADER_LENGTH];
+        in.readFully(text);
+        return new Frame(command, size, new String(text, StandardCharsets.UTF_8));
+    }
+
+    private Frame expect(FileCommand command) throws IOException {
+        Frame frame = read();
+        if (frame.getCommand() != command) {
+            throw new IOException("Expected " + command + ", got " + frame);
+        }
+        return frame;
+    }
+}
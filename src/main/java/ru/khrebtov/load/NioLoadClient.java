@@ -0,0 +1,118 @@
+package ru.khrebtov.load;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * User of the NIO telnet server. The server has no upload command, so an upload is a server-side
+ * copy of the seed over the user's own file (the same write path); a download is cat of the seed.
+ */
+class NioLoadClient implements LoadClient {
+    // ends every reply
+    private static final String REPLY_END = "\\: \n \n";
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+    private final String name;
+    private final long seedSize;
+    // current directory, "\: ", newline - starts every reply
+    private final int promptLength;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    NioLoadClient(String host, int port, int user, long seedSize) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        String greeting = readUntil("\\: ");
+        promptLength = greeting.length() - greeting.lastIndexOf('\n');
+        this.name = "load-u" + user + ".bin";
+        this.seedSize = seedSize;
+    }
+
+    /**
+     * Size of the seed as the server sees it, -1 while it is not indexed yet
+     */
+    long stat() throws IOException {
+        String reply = send("stat " + LoadGenerator.SEED);
+        String[] line = reply.substring(promptLength).trim().split("\\s+");
+        return line.length > 1 && line[0].equals("-") ? Long.parseLong(line[1]) : -1;
+    }
+
+    @Override
+    public long upload() throws IOException {
+        String reply = send("copy " + LoadGenerator.SEED + " " + name);
+        if (!reply.contains("copied")) {
+            throw new IOException("Copy failed: " + reply.trim());
+        }
+        return seedSize;
+    }
+
+    @Override
+    public long download() throws IOException {
+        out.write(("cat " + LoadGenerator.SEED + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        // prompt, file, newline, prompt, " \n"
+        long left = 2L * promptLength + seedSize + 3;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new IOException("Connection closed");
+            }
+            left -= read;
+        }
+        return seedSize;
+    }
+
+    @Override
+    public void command() throws IOException {
+        if (send("stat " + LoadGenerator.SEED).contains("doesn't exist")) {
+            throw new IOException("Seed file is gone");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("exit\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // already broken
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String send(String command) throws IOException {
+        out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return readUntil(REPLY_END);
+    }
+
+    private String readUntil(String end) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        // only the tail can complete the marker, a search of the whole reply per byte is quadratic
+        while (sb.length() < end.length() || !endsWith(sb, end)) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static boolean endsWith(StringBuilder sb, String end) {
+        int offset = sb.length() - end.length();
+        for (int i = 0; i < end.length(); i++) {
+            if (sb.charAt(offset + i) != end.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+package ru.khrebtov.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a socket into {@link Metrics#bytesIn}
+ */
+public class MeteredInputStream extends FilterInputStream {
+    public MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            Metrics.get().bytesIn(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            Metrics.get().bytesIn(read);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,26 @@
+package ru.khrebtov.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a socket into {@link Metrics#bytesOut}
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+    public MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        Metrics.get().bytesOut(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        Metrics.get().bytesOut(len);
+    }
+}
@@ -0,0 +1,145 @@
+package ru.khrebtov.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide server metrics: latency of each command, bytes in and out, connections.
+ * Recording is lock-free (LongAdder counters, {@link LatencyHistogram}), cheap enough
+ * to stay on for every command.
+ * <p>
+ * {@link #report()} is what the stats commands answer; {@link #startDump()} also writes it
+ * to {@code cloud.metrics.file} (server/.metrics) every {@code cloud.metrics.period} seconds (60, 0 - never).
+ */
+public class Metrics {
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final ConcurrentMap<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final long started = System.currentTimeMillis();
+    private ScheduledExecutorService dumper;
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing a command, {@link Timer#stop()} records it
+     */
+    public Timer start(String command) {
+        return new Timer(commands.computeIfAbsent(command, c -> new LatencyHistogram()));
+    }
+
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void connected() {
+        connections.increment();
+        accepted.increment();
+    }
+
+    public void disconnected() {
+        connections.decrement();
+    }
+
+    public LatencyHistogram getCommand(String command) {
+        return commands.get(command);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    /**
+     * Counters and one line per command with latencies in microseconds
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("uptime %d s, connections %d (accepted %d), bytes in %d, out %d\n",
+                (System.currentTimeMillis() - started) / 1000, connections.sum(), accepted.sum(),
+                bytesIn.sum(), bytesOut.sum()));
+        sb.append(String.format("%-16s %10s %10s %10s %10s %10s %10s\n",
+                "command", "count", "mean us", "p50 us", "p99 us", "p999 us", "max us"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            sb.append(String.format("%-16s %10d %10d %10d %10d %10d %10d\n", entry.getKey(), histogram.getCount(),
+                    histogram.getMean() / 1000, histogram.percentile(0.5) / 1000, histogram.percentile(0.99) / 1000,
+                    histogram.percentile(0.999) / 1000, histogram.getMax() / 1000));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts the periodic dump file, once per process
+     */
+    public synchronized void startDump() {
+        long period = Long.getLong("cloud.metrics.period", 60);
+        if (dumper != null || period <= 0) {
+            return;
+        }
+        Path file = Path.of(System.getProperty("cloud.metrics.file", "server/.metrics"));
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), period, period, TimeUnit.SECONDS);
+    }
+
+    private void dump(Path file) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            // readers never see a half-written file
+            Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.writeString(tmp, Instant.now() + "\n" + report(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("Metrics are not dumped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One running command
+     */
+    public static class Timer {
+        private final LatencyHistogram histogram;
+        private final long started = System.nanoTime();
+
+        private Timer(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        public void stop() {
+            histogram.record(System.nanoTime() - started);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ru.khrebtov.mux;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * The only writer of a multiplexed connection. Streams queue their frames, one thread sends
+ * them round robin - one frame of every stream with data in turn - so a small reply waits
+ * for at most a frame of each busy stream, not for a whole download.
+ * A stream queues at most {@link #QUEUE_FRAMES} frames, a fast producer then waits for its turn.
+ */
+public class FrameWriter implements Closeable {
+    static final int QUEUE_FRAMES = 4;
+
+    private final DataOutputStream out;
+    // streams with queued frames, in the order of their turns
+    private final ArrayDeque<StreamOutput> ready = new ArrayDeque<>();
+    private final Thread thread;
+    private boolean closed;
+    private IOException failure;
+
+    public FrameWriter(DataOutputStream out, String name) {
+        this.out = out;
+        thread = new Thread(this::send, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public StreamOutput open(int stream) {
+        return new StreamOutput(this, stream);
+    }
+
+    /**
+     * Sends what is queued and stops, frames queued after it fail
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    synchronized void enqueue(StreamOutput stream, byte[] data, int length) throws IOException {
+        while (stream.queued.size() >= QUEUE_FRAMES && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending", e);
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Connection failed", failure);
+        }
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        stream.queued.add(new Frame(data, length));
+        if (!stream.scheduled) {
+            stream.scheduled = true;
+            ready.add(stream);
+            notifyAll();
+        }
+    }
+
+    private void send() {
+        try {
+            while (true) {
+                StreamOutput stream;
+                Frame frame;
+                boolean idle;
+                synchronized (this) {
+                    while (ready.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (ready.isEmpty()) {
+                        break;
+                    }
+                    stream = ready.poll();
+                    frame = stream.queued.poll();
+                    if (stream.queued.isEmpty()) {
+                        stream.scheduled = false;
+                    } else {
+                        // back to the end of the line
+                        ready.add(stream);
+                    }
+                    idle = ready.isEmpty();
+                    // a producer may be waiting for room
+                    notifyAll();
+                }
+                out.writeInt(stream.getStream());
+                out.writeInt(frame.length);
+                if (frame.length > 0) {
+                    out.write(frame.data, 0, frame.length);
+                }
+                if (idle) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                ready.clear();
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Frame {
+        private final byte[] data;
+        // END and ERROR have no data
+        private final int length;
+
+        Frame(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.khrebtov.mux;
+
+/**
+ * Frames of a multiplexed connection, the same both ways: int stream id, int length, payload.
+ * Every stream carries one command in the usual request and reply encoding, cut into frames
+ * of at most {@link #FRAME_SIZE} bytes. Payload-less frames close a stream: {@link #END} after
+ * the last byte, {@link #ERROR} when the rest will never come. Stream 0 is the session itself,
+ * END on it ends the multiplexed mode.
+ */
+public final class Mux {
+    public static final int FRAME_SIZE = 16 * 1024;
+    public static final int END = -1;
+    public static final int ERROR = -2;
+    public static final int SESSION = 0;
+
+    private Mux() {
+    }
+}
@@ -0,0 +1,130 @@
+package ru.khrebtov.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * Receiving side of one stream: the connection reader offers frames, the stream's own thread
+ * reads them. Holds up to {@link #LIMIT} bytes, then the connection reader waits -
+ * inbound data is not flow-controlled per stream, a consumer slower than the network
+ * holds up the other streams' requests.
+ */
+public class StreamInput extends InputStream {
+    static final int LIMIT = 256 * 1024;
+
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private byte[] current;
+    private int position;
+    private int buffered;
+    private boolean ended;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Called by the connection reader, waits while the stream holds {@link #LIMIT} bytes.
+     * A closed stream drops the data
+     */
+    public synchronized void offer(byte[] frame) throws InterruptedIOException {
+        while (buffered >= LIMIT && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (!closed) {
+            frames.add(frame);
+            buffered += frame.length;
+            notifyAll();
+        }
+    }
+
+    /**
+     * No more data: reads return -1 once the buffered frames are read
+     */
+    public synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Reads fail once the buffered frames are read
+     */
+    public synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (current == null ? 0 : current.length - position) + buffered;
+    }
+
+    /**
+     * Drops the buffered frames and whatever comes later
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        frames.clear();
+        buffered = 0;
+        current = null;
+        notifyAll();
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        while (current == null || position == current.length) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            byte[] frame = frames.poll();
+            if (frame != null) {
+                current = frame;
+                position = 0;
+                buffered -= frame.length;
+                // room for the connection reader
+                notifyAll();
+            } else if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            } else if (ended) {
+                return false;
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+package ru.khrebtov.mux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Sending side of one stream: bytes are collected into frames of {@link Mux#FRAME_SIZE},
+ * flush sends a partial frame, close sends END. Not thread-safe, one writer per stream
+ */
+public class StreamOutput extends OutputStream {
+    private final FrameWriter writer;
+    private final int stream;
+    // guarded by the writer
+    final ArrayDeque<FrameWriter.Frame> queued = new ArrayDeque<>();
+    boolean scheduled;
+    private byte[] buffer = new byte[Mux.FRAME_SIZE];
+    private int count;
+    private boolean ended;
+
+    StreamOutput(FrameWriter writer, int stream) {
+        this.writer = writer;
+        this.stream = stream;
+    }
+
+    public int getStream() {
+        return stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            sendBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                sendBuffer();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            sendBuffer();
+        }
+    }
+
+    /**
+     * Sends the rest and END
+     */
+    @Override
+    public void close() throws IOException {
+        if (!ended) {
+            flush();
+            ended = true;
+            writer.enqueue(this, null, Mux.END);
+        }
+    }
+
+    /**
+     * Drops what is not sent yet and sends ERROR: the other side discards the stream
+     */
+    public void fail() throws IOException {
+        if (!ended) {
+            count = 0;
+            ended = true;
+            writer.enqueue(this, null, Mux.ERROR);
+        }
+    }
+
+    private void sendBuffer() throws IOException {
+        if (ended) {
+            throw new IOException("Stream " + stream + " is closed");
+        }
+        writer.enqueue(this, buffer, count);
+        // the queued frame keeps the old array
+        buffer = new byte[Mux.FRAME_SIZE];
+        count = 0;
+    }
+}
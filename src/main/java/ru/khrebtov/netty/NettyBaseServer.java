@@ -2,46 +2,94 @@ package ru.khrebtov.netty;
 
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import ru.khrebtov.netty.handlers.ChatMessageHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import ru.khrebtov.auth.UserStore;
+import ru.khrebtov.catalog.Catalog;
+import ru.khrebtov.index.DirectoryIndex;
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.netty.handlers.CommandMetricsHandler;
+import ru.khrebtov.netty.handlers.FileTransferHandler;
+import ru.khrebtov.netty.handlers.NotificationHandler;
+import ru.khrebtov.netty.handlers.TrafficMetricsHandler;
+import ru.khrebtov.netty.protocol.FrameDecoder;
+import ru.khrebtov.netty.protocol.FrameEncoder;
+import ru.khrebtov.storage.DedupStorage;
+
+import java.io.IOException;
+import java.nio.file.Path;
 
 public class NettyBaseServer {
+    public static final int PORT = 4000;
+    // threads for the file work of the channels, the event loops never wait for the disk
+    private static final int DISK_THREADS = Integer.getInteger("cloud.netty.disk-threads",
+            2 * Runtime.getRuntime().availableProcessors());
+
     public NettyBaseServer() {
-        EventLoopGroup auth = new NioEventLoopGroup(1);
-        EventLoopGroup worker = new NioEventLoopGroup();
+        this(PORT);
+    }
+
+    /**
+     * On the transport set by cloud.netty.transport, see {@link Transport#fromSystemProperties()}
+     */
+    public NettyBaseServer(int port) {
+        this(port, Transport.fromSystemProperties());
+    }
+
+    /**
+     * Serves until the channel is closed
+     */
+    public NettyBaseServer(int port, Transport transport) {
+        EventLoopGroup auth = transport.group(1);
+        EventLoopGroup worker = transport.group(0);
+        EventExecutorGroup disk = new DefaultEventExecutorGroup(DISK_THREADS);
+        Path root = Path.of("server");
 
-        try {
+        DedupStorage storage = new DedupStorage(root);
+        try (DirectoryIndex index = new DirectoryIndex(storage, Catalog.of(root))) {
+            // no login here, the whole root is served and watched
+            UserStore.checkNoUsers(root);
+            // loaded from the catalog, list and stat never walk the disk
+            index.start();
+            Metrics.get().startDump();
+            TrafficMetricsHandler traffic = new TrafficMetricsHandler();
+            // changes seen by the index go out to the subscribed clients
+            NotificationHandler notifications = new NotificationHandler();
+            index.addListener(notifications);
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(auth, worker)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannel())
+                    // pooled direct buffers for everything the handlers allocate
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                     .childHandler(new ChannelInitializer<>() {
                         @Override
                         protected void initChannel(Channel ch) throws Exception {
                             ch.pipeline().addLast(
-                                    new StringEncoder(),
-                                    new StringDecoder(),
-//									new ByteBufInputHandler(), // in-1
-//									new OutputHandler(), // out-2
-                                    new ChatMessageHandler()
+                                    traffic,
+                                    new FrameDecoder(),
+                                    new FrameEncoder(),
+                                    new CommandMetricsHandler(),
+                                    notifications,
+                                    new FileTransferHandler(storage, index, disk)
                             );
                         }
                     });
-            ChannelFuture future = bootstrap.bind(4000).sync();
-            System.out.println("Server started");
+            ChannelFuture future = bootstrap.bind(port).sync();
+            System.out.println("Server started, transport " + transport.name().toLowerCase());
             future.channel().closeFuture().sync();
             System.out.println("Server closed");
-        } catch (InterruptedException e) {
+        } catch (InterruptedException | IOException e) {
             e.printStackTrace();
         } finally {
             auth.shutdownGracefully();
             worker.shutdownGracefully();
+            disk.shutdownGracefully();
         }
     }
 
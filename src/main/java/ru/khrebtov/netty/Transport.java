@@ -0,0 +1,64 @@
+package ru.khrebtov.netty;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+/**
+ * Event loops and server channel of the Netty server. cloud.netty.transport chooses:
+ * auto (default) - native epoll on Linux when its library loads, NIO otherwise; epoll; nio.
+ * Epoll skips the JDK selector, is edge-triggered and sends FileRegions with sendfile directly.
+ */
+public enum Transport {
+    EPOLL {
+        @Override
+        public EventLoopGroup group(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannel() {
+            return EpollServerSocketChannel.class;
+        }
+    },
+    NIO {
+        @Override
+        public EventLoopGroup group(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannel() {
+            return NioServerSocketChannel.class;
+        }
+    };
+
+    /**
+     * @param threads 0 - Netty's default, twice the processors
+     */
+    public abstract EventLoopGroup group(int threads);
+
+    public abstract Class<? extends ServerChannel> serverChannel();
+
+    public static Transport fromSystemProperties() {
+        String name = System.getProperty("cloud.netty.transport", "auto").toLowerCase();
+        switch (name) {
+            case "nio":
+                return NIO;
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    System.out.println("Epoll is not available, using NIO: " + Epoll.unavailabilityCause());
+                    return NIO;
+                }
+                return EPOLL;
+            case "auto":
+                return Epoll.isAvailable() ? EPOLL : NIO;
+            default:
+                throw new IllegalArgumentException("Unknown transport " + name + ", expected auto, epoll or nio");
+        }
+    }
+}
@@ -4,7 +4,21 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the bytes read into text: UTF-8 is decoded straight from the pooled buffer and the buffer
+ * is released. A character cut by the end of a read waits for the rest of its bytes.
+ * One instance per channel.
+ * <p>
+ * For a line protocol on Netty. {@link ru.khrebtov.netty.NettyBaseServer} speaks binary frames,
+ * its text is decoded by {@link ru.khrebtov.netty.protocol.FrameDecoder} the same way, so this
+ * handler is not in its pipeline; TextCodecBenchmark measures it.
+ */
 public class ByteBufInputHandler extends ChannelInboundHandlerAdapter {
+    // the start of a character cut by the end of the last read, at most 3 bytes
+    private ByteBuf partial;
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         System.out.println("Client connected: " + ctx.channel());
@@ -13,21 +27,86 @@ public class ByteBufInputHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         System.out.println("Client disconnected: " + ctx.channel());
+        releasePartial();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
         ByteBuf buf = (ByteBuf) msg;
-        System.out.println("buf: " + buf);
-        StringBuilder sb = new StringBuilder();
-        while (buf.isReadable()) {
-            sb.append((char) buf.readByte());
+        String text;
+        try {
+            if (partial != null) {
+                // the rest of the cut character, and the text after it
+                int missing = sequenceLength(partial.getByte(partial.readerIndex())) - partial.readableBytes();
+                partial.writeBytes(buf, Math.min(missing, buf.readableBytes()));
+                if (partial.readableBytes() < sequenceLength(partial.getByte(partial.readerIndex()))) {
+                    return;
+                }
+            }
+            int complete = completeLength(buf);
+            text = buf.toString(buf.readerIndex(), complete, StandardCharsets.UTF_8);
+            buf.skipBytes(complete);
+            if (partial != null) {
+                text = partial.toString(StandardCharsets.UTF_8) + text;
+                releasePartial();
+            }
+            if (buf.isReadable()) {
+                partial = ctx.alloc().buffer(4);
+                partial.writeBytes(buf);
+            }
+        } finally {
+            buf.release();
+        }
+        if (!text.isEmpty()) {
+            ctx.fireChannelRead(text);
         }
-        ctx.fireChannelRead(sb.toString());
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         super.exceptionCaught(ctx, cause);
     }
+
+    private void releasePartial() {
+        if (partial != null) {
+            partial.release();
+            partial = null;
+        }
+    }
+
+    /**
+     * Readable bytes up to the start of a character that does not end in this buffer
+     */
+    private static int completeLength(ByteBuf buf) {
+        int end = buf.writerIndex();
+        // a character is at most 4 bytes, its start is among the last 3
+        for (int i = end - 1; i >= Math.max(buf.readerIndex(), end - 3); i--) {
+            byte b = buf.getByte(i);
+            if ((b & 0xC0) != 0x80) {
+                // not a continuation byte: the character starts here
+                return i + sequenceLength(b) > end ? i - buf.readerIndex() : end - buf.readerIndex();
+            }
+        }
+        return end - buf.readerIndex();
+    }
+
+    /**
+     * Bytes of the character starting with this byte, 1 for malformed ones - they decode to U+FFFD
+     */
+    private static int sequenceLength(byte lead) {
+        if ((lead & 0xE0) == 0xC0) {
+            return 2;
+        }
+        if ((lead & 0xF0) == 0xE0) {
+            return 3;
+        }
+        if ((lead & 0xF8) == 0xF0) {
+            return 4;
+        }
+        return 1;
+    }
 }
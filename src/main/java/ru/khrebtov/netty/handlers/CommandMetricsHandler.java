@@ -0,0 +1,48 @@
+package ru.khrebtov.netty.handlers;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.netty.protocol.FileCommand;
+import ru.khrebtov.netty.protocol.Frame;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Sits in front of {@link FileTransferHandler}: times every command frame until its reply
+ * is written (for a download - until the whole file is) and answers STATS with the metrics report.
+ * One instance per channel, commands are answered in order so the timers wait in a queue.
+ */
+public class CommandMetricsHandler extends ChannelDuplexHandler {
+    private final ArrayDeque<Metrics.Timer> pending = new ArrayDeque<>();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Frame) {
+            Frame frame = (Frame) msg;
+            if (frame.getCommand() == FileCommand.STATS) {
+                ctx.writeAndFlush(Frame.ok(0, Metrics.get().report()));
+                return;
+            }
+            pending.add(Metrics.get().start(frame.getCommand().name().toLowerCase(Locale.ROOT)));
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        // the FILE frame is followed by the body, the command ends with it; events answer no command
+        boolean reply = msg instanceof Frame && ((Frame) msg).getCommand() != FileCommand.FILE
+                && ((Frame) msg).getCommand() != FileCommand.EVENT
+                || msg instanceof FileRegion;
+        Metrics.Timer timer = reply ? pending.poll() : null;
+        if (timer != null) {
+            promise = promise.unvoid();
+            promise.addListener(future -> timer.stop());
+        }
+        super.write(ctx, msg, promise);
+    }
+}
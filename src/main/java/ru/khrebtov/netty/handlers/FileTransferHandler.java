@@ -0,0 +1,284 @@
+package ru.khrebtov.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import ru.khrebtov.catalog.FileRecord;
+import ru.khrebtov.index.DirectoryIndex;
+import ru.khrebtov.netty.protocol.FileCommand;
+import ru.khrebtov.netty.protocol.Frame;
+import ru.khrebtov.storage.DedupStorage;
+import ru.khrebtov.storage.FileRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Serves upload / download / list / stat frames against the server directory.
+ * One instance per channel: it keeps the state of the upload in progress.
+ * With an index of the directory list and stat are answered from its catalog, not from the disk.
+ * Downloads read through the {@link DedupStorage}, a file stored as a manifest goes out as its content.
+ * <p>
+ * Nothing touches the disk on the event loop: every frame and upload body is handled on one
+ * executor of the disk group, picked per channel, so frames are handled and answered in order.
+ * The event loop only counts upload bytes waiting for the disk and stops reading the channel
+ * above {@link #HIGH_WATER_MARK} of them until they drain below {@link #LOW_WATER_MARK}.
+ */
+public class FileTransferHandler extends SimpleChannelInboundHandler<Object> {
+    static final int HIGH_WATER_MARK = 1024 * 1024;
+    static final int LOW_WATER_MARK = 256 * 1024;
+
+    private final Path root;
+    private final DedupStorage storage;
+    // null - list straight from the disk, no stat
+    private final DirectoryIndex index;
+    private final EventExecutor disk;
+    // upload bytes handed to the disk executor and not written yet, event loop only
+    private long queued;
+    // the rest is used on the disk executor only
+    private FileChannel upload;
+    private Path uploadPath;
+    private long uploadRemaining;
+    // a disk task failed, the channel is being closed and the tasks queued after it are skipped
+    private boolean failed;
+
+    public FileTransferHandler(DedupStorage storage, EventExecutorGroup disk) {
+        this(storage, null, disk);
+    }
+
+    public FileTransferHandler(DedupStorage storage, DirectoryIndex index, EventExecutorGroup disk) {
+        this.root = storage.getRoot();
+        this.storage = storage;
+        this.index = index;
+        this.disk = disk.next();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        System.out.println("Client connected: " + ctx.channel());
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ByteBuf body = ((ByteBuf) msg).retain();
+            int length = body.readableBytes();
+            queued += length;
+            if (queued > HIGH_WATER_MARK) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            onDisk(ctx, () -> writeBody(ctx, body), () -> {
+                body.release();
+                ctx.executor().execute(() -> written(ctx, length));
+            });
+            return;
+        }
+        Frame frame = (Frame) msg;
+        onDisk(ctx, () -> handle(ctx, frame), null);
+    }
+
+    private void handle(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        switch (frame.getCommand()) {
+            case UPLOAD:
+                startUpload(ctx, frame);
+                break;
+            case DOWNLOAD:
+                download(ctx, frame);
+                break;
+            case LIST:
+                list(ctx, frame);
+                break;
+            case STAT:
+                stat(ctx, frame);
+                break;
+            default:
+                ctx.writeAndFlush(Frame.error("unexpected command " + frame.getCommand()));
+        }
+    }
+
+    private interface DiskTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs the task on this channel's disk executor after the ones queued before it.
+     * A failure goes to {@link #exceptionCaught} on the event loop
+     * @param cleanup runs after the task even if it fails or is skipped, may be null
+     */
+    private void onDisk(ChannelHandlerContext ctx, DiskTask task, Runnable cleanup) {
+        disk.execute(() -> {
+            try {
+                if (!failed) {
+                    task.run();
+                }
+            } catch (Exception e) {
+                failed = true;
+                ctx.executor().execute(() -> exceptionCaught(ctx, e));
+            } finally {
+                if (cleanup != null) {
+                    cleanup.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Event loop: body bytes are on the disk, reading resumes once the queue is short again
+     */
+    private void written(ChannelHandlerContext ctx, int length) {
+        queued -= length;
+        if (queued < LOW_WATER_MARK && !ctx.channel().config().isAutoRead()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void startUpload(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        if (upload != null) {
+            // the decoder sends the whole body before the next frame, so this is a broken client
+            throw new IOException("Upload already in progress: " + root.relativize(uploadPath));
+        }
+        uploadPath = resolve(frame.getText());
+        uploadRemaining = frame.getSize();
+        upload = FileChannel.open(uploadPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        if (uploadRemaining == 0) {
+            finishUpload(ctx);
+        }
+    }
+
+    private void writeBody(ChannelHandlerContext ctx, ByteBuf buf) throws IOException {
+        if (upload == null) {
+            throw new IOException("Body bytes without upload");
+        }
+        while (buf.isReadable()) {
+            uploadRemaining -= buf.readBytes(upload, buf.readableBytes());
+        }
+        if (uploadRemaining == 0) {
+            finishUpload(ctx);
+        }
+    }
+
+    private void finishUpload(ChannelHandlerContext ctx) throws IOException {
+        long size = upload.size();
+        upload.close();
+        upload = null;
+        ctx.writeAndFlush(Frame.ok(size, root.relativize(uploadPath).toString()));
+    }
+
+    private void download(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        Path path = resolve(frame.getText());
+        if (!Files.isRegularFile(path)) {
+            ctx.writeAndFlush(Frame.error("file not found: " + frame.getText()));
+            return;
+        }
+        long size = storage.size(path);
+        List<FileRange> ranges = storage.ranges(path, 0, size);
+        ctx.write(new Frame(FileCommand.FILE, size, frame.getText()));
+        // zero-copy, a region per chunk (or one for a plain file) is written with transferTo
+        // on the event loop as the socket drains, its file is opened then
+        for (FileRange range : ranges) {
+            ctx.write(new DefaultFileRegion(range.getPath().toFile(), range.getPosition(), range.getLength()));
+        }
+        ctx.flush();
+    }
+
+    private void list(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        Path dir = resolve(frame.getText());
+        if (index != null) {
+            List<FileRecord> records = index.lookupList(catalogPath(dir));
+            if (records == null) {
+                ctx.writeAndFlush(Frame.error("directory not found: " + frame.getText()));
+                return;
+            }
+            String names = records.stream()
+                    .map(FileRecord::getName)
+                    .collect(Collectors.joining("\n"));
+            ctx.writeAndFlush(Frame.ok(0, names));
+            return;
+        }
+        if (!Files.isDirectory(dir)) {
+            ctx.writeAndFlush(Frame.error("directory not found: " + frame.getText()));
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            String names = files.map(p -> p.getFileName().toString())
+                    .sorted()
+                    .collect(Collectors.joining("\n"));
+            ctx.writeAndFlush(Frame.ok(0, names));
+        }
+    }
+
+    /**
+     * OK with the size and "d|f created modified hash owner" (times in epoch millis, - for an unknown hash)
+     */
+    private void stat(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        FileRecord record = index == null ? null : index.lookup(catalogPath(resolve(frame.getText())));
+        if (record == null) {
+            ctx.writeAndFlush(Frame.error("file not found: " + frame.getText()));
+            return;
+        }
+        ctx.writeAndFlush(Frame.ok(record.getSize(), String.join(" ", record.isDirectory() ? "d" : "f",
+                Long.toString(record.getCreated()), Long.toString(record.getModified()),
+                record.getHash().isEmpty() ? "-" : record.getHash(), record.getOwner())));
+    }
+
+    private String catalogPath(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * client names are relative to the server root and may not leave it
+     * nor enter the hidden server entries (.users, .chunks, .uploads)
+     */
+    private Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            throw new IOException("Path outside of storage: " + name);
+        }
+        for (Path part : root.relativize(path)) {
+            if (part.toString().startsWith(".")) {
+                throw new IOException("Hidden path: " + name);
+            }
+        }
+        return path;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        System.out.println("Client disconnected: " + ctx.channel());
+        // after the body writes still queued, they are skipped
+        disk.execute(() -> {
+            failed = true;
+            if (upload != null) {
+                try {
+                    upload.close();
+                    Files.deleteIfExists(uploadPath);
+                } catch (IOException e) {
+                    System.out.println("Upload is not removed: " + e.getMessage());
+                }
+                upload = null;
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        System.out.println("Transfer error " + ctx.channel() + ": " + cause.getMessage());
+        ctx.writeAndFlush(Frame.error(String.valueOf(cause.getMessage())))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+}
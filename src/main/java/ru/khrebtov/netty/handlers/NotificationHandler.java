@@ -0,0 +1,306 @@
+package ru.khrebtov.netty.handlers;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import ru.khrebtov.index.DirectoryIndex;
+import ru.khrebtov.index.DirectoryIndex.ChangeListener.Change;
+import ru.khrebtov.netty.protocol.FileCommand;
+import ru.khrebtov.netty.protocol.Frame;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Change notifications. SUBSCRIBE with a path ("" - the whole storage) is answered OK, then
+ * every change under the path comes as an EVENT frame: text "CREATED|MODIFIED|DELETED|RESCANNED path",
+ * size - how many changes of the path it stands for. RESCANNED means changes were lost: list again.
+ * UNSUBSCRIBE with the same path stops them.
+ * <p>
+ * One instance serves every channel and listens to the {@link DirectoryIndex}. Subscribers are
+ * kept in a ChannelGroup, which drops closed channels by itself. Changes wait in each subscriber
+ * for {@link #BATCH_MILLIS}, keyed by path - a file written ten times in a batch is one event -
+ * then the batch is written and the group flushed once. A subscriber that is not writable
+ * (its outbound buffer is over the high water mark) keeps collecting until it drains;
+ * above {@link #MAX_PENDING} paths its events collapse into one RESCANNED per subscription,
+ * so a slow client never costs more than that.
+ */
+@ChannelHandler.Sharable
+public class NotificationHandler extends ChannelInboundHandlerAdapter implements DirectoryIndex.ChangeListener {
+    static final long BATCH_MILLIS = 50;
+    static final int MAX_PENDING = 1024;
+    static final int MAX_SUBSCRIPTIONS = 64;
+    private static final AttributeKey<Subscriber> SUBSCRIBER = AttributeKey.valueOf("subscriber");
+
+    private final ChannelGroup subscribers = new DefaultChannelGroup("subscribers", GlobalEventExecutor.INSTANCE);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Frame) {
+            Frame frame = (Frame) msg;
+            if (frame.getCommand() == FileCommand.SUBSCRIBE) {
+                subscribe(ctx, frame.getText());
+                return;
+            }
+            if (frame.getCommand() == FileCommand.UNSUBSCRIBE) {
+                unsubscribe(ctx, frame.getText());
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // what piled up while the client was slow
+        if (ctx.channel().isWritable() && drain(ctx.channel())) {
+            ctx.flush();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void changed(Change change, String path) {
+        boolean pending = false;
+        for (Channel channel : subscribers) {
+            Subscriber subscriber = channel.attr(SUBSCRIBER).get();
+            if (subscriber != null && subscriber.add(change, path)) {
+                pending = true;
+            }
+        }
+        if (pending && scheduled.compareAndSet(false, true)) {
+            GlobalEventExecutor.INSTANCE.schedule(this::sendBatch, BATCH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void subscribe(ChannelHandlerContext ctx, String text) {
+        String prefix = normalize(text);
+        if (prefix == null) {
+            ctx.writeAndFlush(Frame.error("wrong path: " + text));
+            return;
+        }
+        Channel channel = ctx.channel();
+        Subscriber subscriber = channel.attr(SUBSCRIBER).get();
+        if (subscriber == null) {
+            subscriber = new Subscriber();
+            channel.attr(SUBSCRIBER).set(subscriber);
+            subscribers.add(channel);
+        }
+        int count = subscriber.subscribe(prefix);
+        if (count < 0) {
+            ctx.writeAndFlush(Frame.error("too many subscriptions, at most " + MAX_SUBSCRIPTIONS));
+            return;
+        }
+        ctx.writeAndFlush(Frame.ok(count, prefix));
+    }
+
+    private void unsubscribe(ChannelHandlerContext ctx, String text) {
+        String prefix = normalize(text);
+        Subscriber subscriber = ctx.channel().attr(SUBSCRIBER).get();
+        int count = subscriber == null || prefix == null ? -1 : subscriber.unsubscribe(prefix);
+        if (count < 0) {
+            ctx.writeAndFlush(Frame.error("not subscribed: " + text));
+            return;
+        }
+        if (count == 0) {
+            subscribers.remove(ctx.channel());
+            ctx.channel().attr(SUBSCRIBER).set(null);
+        }
+        ctx.writeAndFlush(Frame.ok(count, prefix));
+    }
+
+    /**
+     * Writes every subscriber's events on its own event loop, then flushes them all at once
+     */
+    private void sendBatch() {
+        scheduled.set(false);
+        Set<Channel> written = ConcurrentHashMap.newKeySet();
+        for (Channel channel : subscribers) {
+            Subscriber subscriber = channel.attr(SUBSCRIBER).get();
+            if (subscriber != null && subscriber.hasPending() && channel.isWritable()) {
+                written.add(channel);
+                channel.eventLoop().execute(() -> drain(channel));
+            }
+        }
+        if (!written.isEmpty()) {
+            // queued on each loop after the writes
+            subscribers.flush(written::contains);
+        }
+    }
+
+    /**
+     * Writes pending events while the channel takes them, on its event loop
+     * @return true if anything was written
+     */
+    private boolean drain(Channel channel) {
+        Subscriber subscriber = channel.attr(SUBSCRIBER).get();
+        if (subscriber == null) {
+            return false;
+        }
+        boolean written = false;
+        while (channel.isWritable()) {
+            Frame event = subscriber.poll();
+            if (event == null) {
+                break;
+            }
+            channel.write(event, channel.voidPromise());
+            written = true;
+        }
+        return written;
+    }
+
+    /**
+     * @return "/" separated path relative to the root, "" for the root, null if it leaves the root
+     */
+    private static String normalize(String text) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty() || trimmed.equals("/")) {
+            return "";
+        }
+        Path path = Path.of(trimmed.startsWith("/") ? trimmed.substring(1) : trimmed).normalize();
+        if (path.isAbsolute() || path.startsWith("..")) {
+            return null;
+        }
+        String normalized = path.toString().replace(path.getFileSystem().getSeparator(), "/");
+        return normalized.equals(".") ? "" : normalized;
+    }
+
+    /**
+     * Subscriptions and not yet sent events of one channel
+     */
+    private static class Subscriber {
+        private final Set<String> prefixes = new HashSet<>();
+        // by path, in the order of the first change
+        private final Map<String, Pending> pending = new LinkedHashMap<>();
+        private boolean collapsed;
+        private long dropped;
+
+        synchronized int subscribe(String prefix) {
+            if (!prefixes.contains(prefix) && prefixes.size() == MAX_SUBSCRIPTIONS) {
+                return -1;
+            }
+            prefixes.add(prefix);
+            return prefixes.size();
+        }
+
+        synchronized int unsubscribe(String prefix) {
+            if (!prefixes.remove(prefix)) {
+                return -1;
+            }
+            if (prefixes.isEmpty()) {
+                pending.clear();
+                collapsed = false;
+            }
+            return prefixes.size();
+        }
+
+        /**
+         * @return true if the change is for this subscriber
+         */
+        synchronized boolean add(Change change, String path) {
+            if (change == Change.RESCANNED) {
+                collapse(1);
+                return !prefixes.isEmpty();
+            }
+            if (!matches(change, path)) {
+                return false;
+            }
+            if (collapsed) {
+                dropped++;
+                return true;
+            }
+            Pending current = pending.get(path);
+            if (current != null) {
+                current.merge(change);
+            } else if (pending.size() < MAX_PENDING) {
+                pending.put(path, new Pending(change));
+            } else {
+                collapse(1);
+            }
+            return true;
+        }
+
+        synchronized boolean hasPending() {
+            return collapsed || !pending.isEmpty();
+        }
+
+        /**
+         * @return next event to send, null if there is none
+         */
+        synchronized Frame poll() {
+            if (collapsed) {
+                // the client learns about the lost events only now that it can take them
+                collapsed = false;
+                for (String prefix : prefixes) {
+                    pending.put(prefix, new Pending(Change.RESCANNED, dropped));
+                }
+                dropped = 0;
+            }
+            Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, Pending> next = iterator.next();
+            iterator.remove();
+            Pending event = next.getValue();
+            return new Frame(FileCommand.EVENT, event.count, event.change.name() + " " + next.getKey());
+        }
+
+        private void collapse(long changes) {
+            for (Pending event : pending.values()) {
+                dropped += event.count;
+            }
+            pending.clear();
+            dropped += changes;
+            collapsed = true;
+        }
+
+        private boolean matches(Change change, String path) {
+            for (String prefix : prefixes) {
+                if (prefix.isEmpty() || path.equals(prefix) || path.startsWith(prefix + "/")) {
+                    return true;
+                }
+                // a directory above the subscribed one came or went with everything under it
+                if (change != Change.MODIFIED && prefix.startsWith(path + "/")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Pending {
+        private Change change;
+        private long count;
+
+        Pending(Change change) {
+            this(change, 1);
+        }
+
+        Pending(Change change, long count) {
+            this.change = change;
+            this.count = count;
+        }
+
+        void merge(Change next) {
+            // created and then written is still news of a new file
+            if (!(change == Change.CREATED && next == Change.MODIFIED)) {
+                change = next;
+            }
+            count++;
+        }
+    }
+}
@@ -1,19 +1,29 @@
 package ru.khrebtov.netty.handlers;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 
-import java.nio.charset.StandardCharsets;
-
+/**
+ * Writes text as UTF-8: the characters are encoded straight into a pooled direct buffer
+ * sized for them, no byte array in between. Buffers pass through, flushing is left to the writer.
+ * <p>
+ * For a line protocol on Netty. {@link ru.khrebtov.netty.NettyBaseServer} speaks binary frames,
+ * {@link ru.khrebtov.netty.protocol.FrameEncoder} encodes their text the same way, so this handler
+ * is not in its pipeline; TextCodecBenchmark measures it.
+ */
 public class OutputHandler extends ChannelOutboundHandlerAdapter {
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        String message = String.valueOf(msg);
-        ByteBuf buf = ctx.alloc().directBuffer();
-        System.out.println("out: " + message);
-        buf.writeBytes(message.getBytes(StandardCharsets.UTF_8));
-        ctx.writeAndFlush(buf);
+        if (msg instanceof ByteBuf) {
+            ctx.write(msg, promise);
+            return;
+        }
+        CharSequence message = msg instanceof CharSequence ? (CharSequence) msg : String.valueOf(msg);
+        ByteBuf buf = ctx.alloc().directBuffer(ByteBufUtil.utf8MaxBytes(message));
+        ByteBufUtil.writeUtf8(buf, message);
+        ctx.write(buf, promise);
     }
 }
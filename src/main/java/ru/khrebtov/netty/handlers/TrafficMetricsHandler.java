@@ -0,0 +1,46 @@
+package ru.khrebtov.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import ru.khrebtov.metrics.Metrics;
+
+/**
+ * First in the pipeline: counts connections and the raw bytes read and written.
+ * Stateless, one instance serves every channel.
+ */
+@ChannelHandler.Sharable
+public class TrafficMetricsHandler extends ChannelDuplexHandler {
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        Metrics.get().connected();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Metrics.get().disconnected();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            Metrics.get().bytesIn(((ByteBuf) msg).readableBytes());
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            Metrics.get().bytesOut(((ByteBuf) msg).readableBytes());
+        } else if (msg instanceof FileRegion) {
+            Metrics.get().bytesOut(((FileRegion) msg).count());
+        }
+        super.write(ctx, msg, promise);
+    }
+}
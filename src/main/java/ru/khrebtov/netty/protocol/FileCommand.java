@@ -0,0 +1,45 @@
+package ru.khrebtov.netty.protocol;
+
+/**
+ * Frame types of the binary file protocol.
+ * UPLOAD (client -> server) and FILE (server -> client) are followed by {@code size} raw body bytes.
+ * EVENT (server -> client) comes at any time between replies once the client has subscribed.
+ */
+public enum FileCommand {
+    UPLOAD(1, true),
+    DOWNLOAD(2, false),
+    LIST(3, false),
+    FILE(4, true),
+    OK(5, false),
+    ERROR(6, false),
+    STAT(7, false),
+    STATS(8, false),
+    SUBSCRIBE(9, false),
+    UNSUBSCRIBE(10, false),
+    EVENT(11, false);
+
+    private final byte code;
+    private final boolean hasBody;
+
+    FileCommand(int code, boolean hasBody) {
+        this.code = (byte) code;
+        this.hasBody = hasBody;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    public boolean hasBody() {
+        return hasBody;
+    }
+
+    public static FileCommand of(byte code) {
+        for (FileCommand command : values()) {
+            if (command.code == code) {
+                return command;
+            }
+        }
+        throw new IllegalArgumentException("Unknown command code: " + code);
+    }
+}
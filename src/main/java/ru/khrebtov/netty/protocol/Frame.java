@@ -0,0 +1,48 @@
+package ru.khrebtov.netty.protocol;
+
+/**
+ * Control frame: {@code [int length][byte command][long size][utf-8 text]},
+ * length counts everything after the length field itself.
+ */
+public class Frame {
+    public static final int HEADER_LENGTH = 1 + 8;
+
+    private final FileCommand command;
+    private final long size;
+    private final String text;
+
+    public Frame(FileCommand command, long size, String text) {
+        this.command = command;
+        this.size = size;
+        this.text = text;
+    }
+
+    public static Frame ok(long size, String text) {
+        return new Frame(FileCommand.OK, size, text);
+    }
+
+    public static Frame error(String text) {
+        return new Frame(FileCommand.ERROR, 0, text);
+    }
+
+    public FileCommand getCommand() {
+        return command;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{" +
+                "command=" + command +
+                ", size=" + size +
+                ", text='" + text + '\'' +
+                '}';
+    }
+}
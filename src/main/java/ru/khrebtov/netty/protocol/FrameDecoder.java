@@ -0,0 +1,71 @@
+package ru.khrebtov.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Length-field frame decoder. Emits {@link Frame} for control frames and, after a frame
+ * whose command carries a body, emits the next {@code size} bytes as retained ByteBuf slices.
+ * The text of a frame is decoded as UTF-8 straight from the pooled buffer, no byte array per frame.
+ */
+public class FrameDecoder extends ByteToMessageDecoder {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final int maxFrameLength;
+    private long bodyRemaining;
+
+    public FrameDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (bodyRemaining > 0) {
+            int length = (int) Math.min(in.readableBytes(), bodyRemaining);
+            if (length > 0) {
+                out.add(in.readRetainedSlice(length));
+                bodyRemaining -= length;
+            }
+            return;
+        }
+
+        if (in.readableBytes() < 4) {
+            return;
+        }
+        int length = in.getInt(in.readerIndex());
+        if (length < Frame.HEADER_LENGTH) {
+            throw new CorruptedFrameException("Frame length too small: " + length);
+        }
+        if (length > maxFrameLength) {
+            throw new TooLongFrameException("Frame length " + length + " exceeds " + maxFrameLength);
+        }
+        if (in.readableBytes() < 4 + length) {
+            return;
+        }
+
+        in.skipBytes(4);
+        FileCommand command = FileCommand.of(in.readByte());
+        long size = in.readLong();
+        int textLength = length - Frame.HEADER_LENGTH;
+        // from the backing array of a heap buffer, through a reused thread-local one for a direct buffer
+        String text = textLength == 0 ? "" : in.toString(in.readerIndex(), textLength, StandardCharsets.UTF_8);
+        in.skipBytes(textLength);
+        if (size < 0) {
+            throw new CorruptedFrameException("Negative size: " + size);
+        }
+        out.add(new Frame(command, size, text));
+        if (command.hasBody()) {
+            bodyRemaining = size;
+        }
+    }
+}
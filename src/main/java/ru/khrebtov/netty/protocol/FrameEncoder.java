@@ -0,0 +1,27 @@
+package ru.khrebtov.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+/**
+ * Writes control frames; file bodies (FileRegion) pass through untouched.
+ */
+public class FrameEncoder extends MessageToByteEncoder<Frame> {
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Frame frame, boolean preferDirect) {
+        // sized for the frame: the text is encoded in place and the buffer never grows
+        return ctx.alloc().ioBuffer(4 + Frame.HEADER_LENGTH + ByteBufUtil.utf8MaxBytes(frame.getText()));
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Frame frame, ByteBuf out) {
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(frame.getCommand().code());
+        out.writeLong(frame.getSize());
+        ByteBufUtil.writeUtf8(out, frame.getText());
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+}
@@ -0,0 +1,76 @@
+package ru.khrebtov.nio;
+
+import ru.khrebtov.storage.FileRange;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * File content queued for sending: one range of a plain file or the chunk ranges of a
+ * manifest. Bytes are moved with FileChannel.transferTo only when the socket is writable,
+ * and only the file of the current range is open.
+ */
+public class FileSlice implements Closeable {
+	private static final long MAX_TRANSFER = 1024 * 1024;
+
+	private final Iterator<FileRange> ranges;
+	private FileChannel file;
+	private long position;
+	private long remaining;
+
+	public FileSlice(List<FileRange> ranges) {
+		this.ranges = ranges.iterator();
+	}
+
+	/**
+	 * @return bytes written, 0 if the target accepts nothing now
+	 * @throws EOFException if the file is now shorter than the range, the session should be closed
+	 */
+	public long writeTo(WritableByteChannel target) throws IOException {
+		if (remaining == 0 && !nextRange()) {
+			return 0;
+		}
+		long written = file.transferTo(position, Math.min(remaining, MAX_TRANSFER), target);
+		if (written == 0 && position >= file.size()) {
+			// truncated since it was queued, waiting for OP_WRITE again would spin forever
+			throw new EOFException("File truncated during transfer");
+		}
+		position += written;
+		remaining -= written;
+		if (remaining == 0) {
+			close();
+		}
+		return written;
+	}
+
+	private boolean nextRange() throws IOException {
+		while (ranges.hasNext()) {
+			FileRange range = ranges.next();
+			if (range.getLength() > 0) {
+				file = FileChannel.open(range.getPath(), StandardOpenOption.READ);
+				position = range.getPosition();
+				remaining = range.getLength();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean hasRemaining() {
+		return remaining > 0 || ranges.hasNext();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package ru.khrebtov.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a byte stream into '\n' terminated lines (a trailing '\r' is dropped).
+ * Bytes of an unfinished line are kept until the next read, so a command may arrive
+ * in any number of pieces; a line longer than maxLength is discarded up to its end.
+ */
+public class LineDecoder {
+	private final int maxLength;
+	private byte[] line = new byte[128];
+	private int length;
+	private boolean discarding;
+	private boolean overflowed;
+
+	public LineDecoder(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param in buffer in read mode, fully consumed
+	 * @return complete lines in arrival order
+	 */
+	public List<String> decode(ByteBuffer in) {
+		List<String> lines = new ArrayList<>();
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (b == '\n') {
+				if (discarding) {
+					discarding = false;
+				} else {
+					lines.add(toLine());
+				}
+				length = 0;
+			} else if (!discarding) {
+				if (length == maxLength) {
+					discarding = true;
+					overflowed = true;
+					length = 0;
+					continue;
+				}
+				if (length == line.length) {
+					line = Arrays.copyOf(line, Math.min(maxLength, line.length * 2));
+				}
+				line[length++] = b;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @return true once after a line was dropped for being too long
+	 */
+	public boolean pollOverflow() {
+		boolean result = overflowed;
+		overflowed = false;
+		return result;
+	}
+
+	private String toLine() {
+		int end = length;
+		if (end > 0 && line[end - 1] == '\r') {
+			end--;
+		}
+		return new String(line, 0, end, StandardCharsets.UTF_8);
+	}
+}
@@ -1,300 +1,738 @@
 package ru.khrebtov.nio;
 
+import ru.khrebtov.auth.UserStore;
+import ru.khrebtov.catalog.Catalog;
+import ru.khrebtov.catalog.FileRecord;
+import ru.khrebtov.index.DirectoryIndex;
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.storage.DedupStorage;
+import ru.khrebtov.storage.FileRange;
+import ru.khrebtov.storage.TreeOperations;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class NioTelnetServer {
     public static final String LS_COMMAND = "\tls    view all files and directories\n";
+    public static final String LS_LONG_COMMAND = "\tls -l [--sort name|size|date] [--page N]   sizes and dates, by pages\n";
     public static final String TOUCH_COMMAND = "\ttouch [filename] 	 create file\n";
     public static final String CD_COMMAND = "\tcd [path] 	 moving through the directory\n";
     public static final String RM_COMMAND = "\trm [filename | dirname] 	 remove file|directory\n";
     public static final String COPY_COMMAND = "\tcopy [src] [target]   copy file or directory\n";
-    public static final String CAT_COMMAND = "\tcat [filename]   view content\n";
+    public static final String CAT_COMMAND = "\tcat [filename] [offset] [length]   view content\n";
+    public static final String TAIL_COMMAND = "\ttail [filename] [lines]   view last lines\n";
     public static final String MKDIR_COMMAND = "\tmkdir    create directory\n";
+    public static final String CANCEL_COMMAND = "\tcancel    stop the running copy or rm\n";
+    public static final String GC_COMMAND = "\tgc    free chunks no file refers to\n";
+    public static final String SEARCH_COMMAND = "\tsearch [text | glob] [limit]   find files by name\n";
+    public static final String STAT_COMMAND = "\tstat [name]   size, dates, hash and owner\n";
+    public static final String STATS_COMMAND = "\tstats    command latencies and traffic of the server\n";
+    // commands with a latency histogram, anything else would let clients fill the metrics with junk
+    private static final Set<String> TIMED_COMMANDS = Set.of(
+            "ls", "cat", "tail", "copy", "rm", "touch", "mkdir", "cd", "search", "stat", "gc");
     public static final String CHANGE_NICKNAME = "\tnick    change nickname\n";
-    private String startPath = "server";
+    private static final int TAIL_LINES = 10;
+    private static final int WORKER_QUEUE_SIZE = 1024;
+    private static final int LS_PAGE_SIZE = 100;
+    private static final DateTimeFormatter LS_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+    private static final int SEARCH_LIMIT = 1000;
+    private static final int MAX_SEARCH_LIMIT = 100_000;
+    private static final int SEARCH_BATCH = 100;
+    private final Path root = Path.of("server").toAbsolutePath().normalize();
+    private final DedupStorage storage = new DedupStorage(root);
+    private final DirectoryIndex index = new DirectoryIndex(storage, Catalog.of(root));
+    private final TreeOperations treeOperations = new TreeOperations(storage);
 
-	private final ByteBuffer buffer = ByteBuffer.allocate(512);
+	private final Reactor[] reactors;
+	private final ExecutorService workers;
+	private int nextReactor;
 
 	public NioTelnetServer() throws IOException {
-		ServerSocketChannel server = ServerSocketChannel.open();
-		server.bind(new InetSocketAddress(5678));
-		server.configureBlocking(false);
-		// OP_ACCEPT, OP_READ, OP_WRITE
-		Selector selector = Selector.open();
-
-		server.register(selector, SelectionKey.OP_ACCEPT);
-		System.out.println("Server started");
-
-		while (server.isOpen()) {
-			selector.select();
-
-			var selectionKeys = selector.selectedKeys();
-			var iterator = selectionKeys.iterator();
-
-			while (iterator.hasNext()) {
-				var key = iterator.next();
-				if (key.isAcceptable()) {
-					handleAccept(key, selector);
-				} else if (key.isReadable()) {
-					handleRead(key, selector);
+		this(5678, Runtime.getRuntime().availableProcessors(), 4);
+	}
+
+	/**
+	 * Serves until the calling thread is interrupted, then closes every session and stops its threads
+	 * @param port         listening port
+	 * @param reactorCount worker selectors, connections are spread over them round-robin
+	 * @param workerCount  threads for blocking filesystem commands
+	 */
+	public NioTelnetServer(int port, int reactorCount, int workerCount) throws IOException {
+		// no login here, the whole root is served
+		UserStore.checkNoUsers(root);
+		index.start();
+		Metrics.get().startDump();
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE));
+		reactors = new Reactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++) {
+			reactors[i] = new Reactor(this);
+			new Thread(reactors[i], "nio-reactor-" + i).start();
+		}
+
+		// boss selector only accepts
+		try (ServerSocketChannel server = ServerSocketChannel.open();
+			 Selector selector = Selector.open()) {
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			System.out.println("Server started");
+
+			// interrupting the accepting thread stops the server
+			while (server.isOpen() && !Thread.currentThread().isInterrupted()) {
+				selector.select();
+
+				var selectionKeys = selector.selectedKeys();
+				var iterator = selectionKeys.iterator();
+
+				while (iterator.hasNext()) {
+					var key = iterator.next();
+					iterator.remove();
+					if (key.isAcceptable()) {
+						handleAccept(key);
+					}
 				}
-				iterator.remove();
+			}
+		} finally {
+			// the interrupt that ended the loop would close the catalog files on their next write
+			boolean interrupted = Thread.interrupted();
+			for (Reactor reactor : reactors) {
+				reactor.shutdown();
+			}
+			workers.shutdownNow();
+			index.close();
+			System.out.println("Server closed");
+			if (interrupted) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
 
-	private void handleRead(SelectionKey key, Selector selector) throws IOException {
+	void handleWrite(SelectionKey key) {
+		Session session = (Session) key.attachment();
+		try {
+			session.flush();
+		} catch (IOException e) {
+			close(session);
+		}
+	}
+
+	void handleRead(SelectionKey key, ByteBuffer buffer) {
 		SocketChannel channel = ((SocketChannel) key.channel());
-		SocketAddress client = channel.getRemoteAddress();
-		int readBytes = channel.read(buffer);
+		Session session = (Session) key.attachment();
+		int readBytes;
+		try {
+			readBytes = channel.read(buffer);
+		} catch (IOException e) {
+			// connection reset by the client
+			readBytes = -1;
+		}
 		if (readBytes < 0) {
-			channel.close();
+			close(session);
 			return;
 		} else if (readBytes == 0) {
 			return;
 		}
+		Metrics.get().bytesIn(readBytes);
 
 		buffer.flip();
+		List<String> lines = session.getDecoder().decode(buffer);
+		buffer.clear();
+		// cancel does not wait in the queue behind the command it cancels
+		TreeOperations.Progress operation = session.getOperation();
+		if (operation != null && lines.removeIf(line -> "cancel".equals(line.trim()))) {
+			operation.cancel();
+		}
+		session.addCommands(lines);
 
-		StringBuilder sb = new StringBuilder();
-		while (buffer.hasRemaining()) {
-			sb.append((char) buffer.get());
+		if (session.getDecoder().pollOverflow()) {
+			sendMessage("command is too long\n", session);
 		}
+		processCommands(session);
+	}
 
-		buffer.clear();
+	/**
+	 * Runs queued commands until one of them goes to the worker pool,
+	 * pipelined commands included, then flushes the replies of the whole batch
+	 */
+	private void processCommands(Session session) {
+		String command;
+		while (session.getChannel().isOpen() && (command = session.pollCommand()) != null) {
+			String name = command.trim().split(" ", 2)[0];
+			Metrics.Timer timer = TIMED_COMMANDS.contains(name) ? Metrics.get().start(name) : null;
+			try {
+				handleCommand(command.trim(), session);
+				if (session.isBusy()) {
+					// offloaded, stopped when the reply is back
+					session.setTimer(timer);
+					// a cancel read together with the command does not wait for it to finish
+					if (session.getOperation() != null && session.pollCancel()) {
+						session.getOperation().cancel();
+					}
+				} else if (timer != null) {
+					timer.stop();
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				sendMessage("wrong command\n", session);
+				sendMessage(" \n", session);
+			} catch (IOException e) {
+				close(session);
+			}
+		}
+		if (session.getChannel().isOpen()) {
+			try {
+				session.flush();
+			} catch (IOException e) {
+				close(session);
+			}
+		}
+	}
+
+	/**
+	 * Runs a blocking filesystem operation on the worker pool. The session takes no other
+	 * command until the reply is back on its reactor thread.
+	 */
+	private void offload(Session session, Callable<String> operation) {
+		session.setBusy(true);
+		try {
+			workers.execute(() -> {
+				String result;
+				try {
+					result = operation.call();
+				} catch (Exception e) {
+					result = "wrong command\n";
+				}
+				String message = result;
+				session.getReactor().execute(() -> {
+					session.setBusy(false);
+					session.setOperation(null);
+					if (session.getTimer() != null) {
+						session.getTimer().stop();
+						session.setTimer(null);
+					}
+					if (session.getChannel().isOpen()) {
+						sendMessage(message, session);
+						sendMessage(" \n", session);
+						processCommands(session);
+					}
+				});
+			});
+		} catch (RejectedExecutionException e) {
+			session.setBusy(false);
+			session.setOperation(null);
+			sendMessage("server is busy, try again later\n", session);
+			sendMessage(" \n", session);
+		}
+	}
 
+	void close(Session session) {
+		try {
+			session.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-		if (key.isValid()) {
-			String command = sb
-					.toString()
-					.replace("\n", "")
-					.replace("\r", "");
-
-            if ("--help".equals(command)) {
-                sendMessage(LS_COMMAND, selector, client);
-                sendMessage(TOUCH_COMMAND, selector, client);
-                sendMessage(CD_COMMAND, selector, client);
-                sendMessage(RM_COMMAND, selector, client);
-                sendMessage(COPY_COMMAND, selector, client);
-                sendMessage(CAT_COMMAND, selector, client);
-                sendMessage(MKDIR_COMMAND, selector, client);
-                sendMessage(CHANGE_NICKNAME, selector, client);
-            } else if ("ls".equals(command)) {
-                sendMessage(getFileList().concat("\n"), selector, client);
-            } else if (command.startsWith("touch")) {
-                touch(selector, client, command);
-                sendMessage(" \n", selector, client);
-            } else if (command.startsWith("mkdir")) {
-                mkdir(selector, client, command);
-                sendMessage(" \n", selector, client);
-            } else if (command.startsWith("rm")) {
-                delete(command, selector, client);
-                sendMessage(" \n", selector, client);
-            } else if (command.startsWith("cat")) {
-                cat(command, selector, client);
-                sendMessage(" \n", selector, client);
-            } else if (command.startsWith("copy")) {
-                copy(command, selector, client);
-                sendMessage(" \n", selector, client);
-            } else if (command.startsWith("cd")) {
-                cd(command, selector, client);
-                sendMessage(" \n", selector, client);
-            } else if ("exit".equals(command)) {
-                System.out.println("Client logged out. IP: " + channel.getRemoteAddress());
-                channel.close();
-                return;
-            }
+	private void handleCommand(String command, Session session) throws IOException {
+		SocketChannel channel = session.getChannel();
+        if ("--help".equals(command)) {
+            sendMessage(LS_COMMAND, session);
+            sendMessage(LS_LONG_COMMAND, session);
+            sendMessage(TOUCH_COMMAND, session);
+            sendMessage(CD_COMMAND, session);
+            sendMessage(RM_COMMAND, session);
+            sendMessage(COPY_COMMAND, session);
+            sendMessage(CAT_COMMAND, session);
+            sendMessage(TAIL_COMMAND, session);
+            sendMessage(MKDIR_COMMAND, session);
+            sendMessage(CANCEL_COMMAND, session);
+            sendMessage(GC_COMMAND, session);
+            sendMessage(SEARCH_COMMAND, session);
+            sendMessage(STAT_COMMAND, session);
+            sendMessage(STATS_COMMAND, session);
+            sendMessage(CHANGE_NICKNAME, session);
+        } else if ("ls".equals(command)) {
+            // answered from the index, no disk access
+            sendMessage(getFileList(session.getCurrentDir()).concat("\n"), session);
+            sendMessage(" \n", session);
+        } else if (command.startsWith("ls ")) {
+            listLong(command, session);
+            sendMessage(" \n", session);
+        } else if ("cancel".equals(command)) {
+            // a running operation is cancelled as soon as the line is read, see handleRead
+            sendMessage("nothing to cancel\n", session);
+            sendMessage(" \n", session);
+        } else if ("gc".equals(command)) {
+            offload(session, () -> String.format("%d chunks deleted\n", storage.collectGarbage()));
+        } else if ("stats".equals(command)) {
+            sendMessage(Metrics.get().report(), session);
+            sendMessage(" \n", session);
+        } else if (command.startsWith("stat")) {
+            stat(command, session);
+            sendMessage(" \n", session);
+        } else if (command.startsWith("search")) {
+            search(command, session);
+        } else if (command.startsWith("touch")) {
+            touch(session, command);
+        } else if (command.startsWith("mkdir")) {
+            mkdir(session, command);
+        } else if (command.startsWith("rm")) {
+            delete(command, session);
+        } else if (command.startsWith("cat")) {
+            cat(command, session);
+            sendMessage(" \n", session);
+        } else if (command.startsWith("tail")) {
+            tail(command, session);
+            sendMessage(" \n", session);
+        } else if (command.startsWith("copy")) {
+            copy(command, session);
+        } else if (command.startsWith("cd")) {
+            cd(command, session);
+            sendMessage(" \n", session);
+        } else if ("exit".equals(command)) {
+            System.out.println("Client logged out. IP: " + channel.getRemoteAddress());
+            close(session);
         }
     }
 
-    private void cd(String command, Selector selector, SocketAddress client) {
+    private void cd(String command, Session session) {
         String[] commands = command.split(" ");
-            if ("~".equals(commands[1])) {
-                startPath = "server";
-                sendMessage(" \n", selector, client);
-            } else if ("..".equals(commands[1])) {
-                String absolutePath = Path.of(startPath).toAbsolutePath().toString();
-                String shortenedPath = absolutePath.substring(0, absolutePath.lastIndexOf(92) + 1); //обрезаю путь по последний символ / включительно
-                if(shortenedPath.length()<=Path.of("server").toAbsolutePath().toString().length()){
-                    startPath = "server";
+        if ("~".equals(commands[1])) {
+            session.setCurrentDir(session.getRoot());
+        } else if ("..".equals(commands[1])) {
+            if (!session.getCurrentDir().equals(session.getRoot())) {
+                session.setCurrentDir(session.getCurrentDir().getParent());
+            }
+        } else {
+            try {
+                Path newPath = session.resolve(commands[1]);
+                if (index.isDirectory(newPath)) {
+                    session.setCurrentDir(newPath);
+                } else {
+                    sendMessage("directory doesn't exists\n", session);
                 }
-                sendMessage(" \n", selector, client);
-            } else {
-                startPath = Path.of(startPath,commands[1]).toAbsolutePath().toString();
-                sendMessage(" \n", selector, client);
+            } catch (IOException e) {
+                sendMessage("wrong command\n", session);
+            }
+        }
+    }
+
+    private void copy(String command, Session session)  {
+        String[] commands = command.split(" ");
+        if (commands.length != 3) {
+            sendMessage("wrong command\n", session);
+            sendMessage(" \n", session);
+            return;
+        }
+        try {
+            Path srcPath = session.resolve(commands[1]);
+            Path dstPath = session.resolve(commands[2]);
+            TreeOperations.Progress progress = track(session, "copy");
+            offload(session, () -> copy(srcPath, dstPath, commands[1], commands[2], progress));
+        } catch (IOException e) {
+            sendMessage("wrong command\n", session);
+            sendMessage(" \n", session);
+        }
+    }
+
+    private String copy(Path srcPath, Path dstPath, String src, String dst, TreeOperations.Progress progress)
+            throws IOException {
+        if (!index.exists(srcPath)) {
+            return "src file doesn't exist\n";
+        }
+        if (index.isDirectory(srcPath)) {
+            if (dstPath.startsWith(srcPath)) {
+                return "can't copy a directory into itself\n";
+            }
+            try {
+                treeOperations.copy(srcPath, dstPath, progress);
+            } finally {
+                index.refresh(dstPath);
+            }
+            if (progress.isCancelled()) {
+                return String.format("copy cancelled, %s\n", progress);
+            }
+            return String.format("content copied from dir: %s to dir: %s \n", src, dst);
+        }
+        storage.copy(srcPath, dstPath);
+        index.refresh(dstPath);
+        return String.format("content copied from %s file to %s file\n", src, dst);
+    }
+
+    /**
+     * Progress of a tree operation, reported to the session and cancelled by its "cancel".
+     * Set on the reactor before the command is offloaded, a cancel read right after
+     * the command finds it; cleared when the reply is back
+     */
+    private TreeOperations.Progress track(Session session, String operation) {
+        TreeOperations.Progress progress = new TreeOperations.Progress(operation,
+                p -> sendAsync(p + "\n", session));
+        session.setOperation(progress);
+        return progress;
+    }
+
+    private void cat(String command, Session session)  {
+        String[] commands = command.split(" ");
+        try {
+            long offset = commands.length > 2 ? Long.parseLong(commands[2]) : 0;
+            long length = commands.length > 3 ? Long.parseLong(commands[3]) : Long.MAX_VALUE;
+            if (offset < 0 || length < 0) {
+                sendMessage("wrong command\n", session);
+                return;
+            }
+            Path newPath = session.resolve(commands[1]);
+            if (!index.isRegularFile(newPath)) {
+                sendMessage("wrong command\n", session);
+                return;
             }
+            sendFile(storage.ranges(newPath, offset, length), session);
+        } catch (IOException | NumberFormatException e) {
+            sendMessage("wrong command\n", session);
+        }
     }
 
-    private void copy(String command, Selector selector, SocketAddress client)  {
+    private void tail(String command, Session session)  {
         String[] commands = command.split(" ");
-        try{
-            if(commands.length!=3){
-                sendMessage("wrong command\n", selector, client);
+        try {
+            int lines = commands.length > 2 ? Integer.parseInt(commands[2]) : TAIL_LINES;
+            Path newPath = session.resolve(commands[1]);
+            if (!index.isRegularFile(newPath)) {
+                sendMessage("wrong command\n", session);
                 return;
-            } else {
-                Path srcPath = Path.of(startPath, commands[1]);
-                Path dstPath = Path.of(startPath, commands[2]);
-                if (!Files.exists(srcPath)) {
-                    sendMessage("src file doesn't exist\n", selector, client);
-                    return;
-                }
-                if (Files.isDirectory(srcPath)) {
-                    copyDyr(srcPath, dstPath,selector,client);
-                    sendMessage(String.format("content copied from dir: %s to dir: %s \n",
-                            commands[1], commands[2]), selector, client);
-                } else {
-                    Files.copy(srcPath, dstPath, StandardCopyOption.REPLACE_EXISTING);
-                    sendMessage(String.format("content copied from %s file to %s file\n",
-                            commands[1], commands[2]), selector, client);
+            }
+            try (SeekableByteChannel file = storage.open(newPath)) {
+                long offset = tailOffset(file, lines);
+                sendFile(storage.ranges(newPath, offset, file.size() - offset), session);
+            }
+        } catch (IOException | NumberFormatException e) {
+            sendMessage("wrong command\n", session);
+        }
+    }
+
+    /**
+     * Start of the last {@code lines} lines, found by reading backwards in small blocks
+     */
+    private long tailOffset(SeekableByteChannel file, int lines) throws IOException {
+        long end = file.size();
+        if (lines <= 0) {
+            return end;
+        }
+        ByteBuffer block = ByteBuffer.allocate(8 * 1024);
+        // a newline closing the last line does not start a new one
+        long position = end - 1;
+        int found = 0;
+        while (position > 0) {
+            long start = Math.max(0, position - block.capacity());
+            block.clear().limit((int) (position - start));
+            file.position(start);
+            while (block.hasRemaining() && file.read(block) > 0) {
+                // reads may return short
+            }
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && ++found == lines) {
+                    return start + i + 1;
                 }
             }
-        }catch (IOException e) {
-            sendMessage("wrong command\n", selector, client);
+            position = start;
         }
+        return 0;
     }
 
-    private void copyDyr(Path srcPath, Path dstPath,Selector selector, SocketAddress client) {
-        try{
-            if(!Files.exists(dstPath)){
-                Files.createDirectory(dstPath);
+    private void sendFile(List<FileRange> ranges, Session session) throws IOException {
+        sendMessage("", session);
+        session.enqueue(new FileSlice(ranges));
+        session.enqueue(ByteBuffer.wrap(new byte[]{'\n'}));
+    }
+
+    /**
+     * Name search over the whole storage, results are sent in batches while the search goes on
+     */
+    private void search(String command, Session session) {
+        String[] commands = command.split(" ");
+        try {
+            int limit = commands.length > 2 ? Integer.parseInt(commands[2]) : SEARCH_LIMIT;
+            if (commands.length > 3 || limit <= 0 || limit > MAX_SEARCH_LIMIT) {
+                throw new NumberFormatException();
             }
-            Files.walkFileTree(srcPath, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    Path newDir = dstPath.resolve(srcPath.relativize(dir));
-                    Files.copy(dir, newDir, StandardCopyOption.REPLACE_EXISTING);
-                    return FileVisitResult.CONTINUE;
+            offload(session, () -> {
+                List<String> batch = new ArrayList<>();
+                int found = index.search(commands[1], limit, path -> {
+                    batch.add(path);
+                    if (batch.size() == SEARCH_BATCH) {
+                        sendResults(batch, session);
+                        batch.clear();
+                    }
+                    return session.getChannel().isOpen();
+                });
+                sendResults(batch, session);
+                return String.format("%d found\n", found);
+            });
+        } catch (NumberFormatException e) {
+            sendMessage("wrong command\n", session);
+            sendMessage(" \n", session);
+        }
+    }
+
+    private void sendResults(List<String> batch, Session session) {
+        if (!batch.isEmpty()) {
+            sendAsync(String.join("\n", batch).concat("\n"), session);
+        }
+    }
+
+    /**
+     * Message from a worker thread, it is written by the session's reactor
+     */
+    private void sendAsync(String message, Session session) {
+        session.getReactor().execute(() -> {
+            if (session.getChannel().isOpen()) {
+                sendMessage(message, session);
+                try {
+                    session.flush();
+                } catch (IOException e) {
+                    close(session);
                 }
+            }
+        });
+    }
 
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Files.copy(file, dstPath.resolve(srcPath.relativize(file)));
-                    return FileVisitResult.CONTINUE;
+    private void mkdir(Session session, String command)  {
+        String[] commands = command.split(" ");
+        try {
+            Path newPath = session.resolve(commands[1]);
+            offload(session, () -> {
+                if (index.exists(newPath)) {
+                    return "directory is already exists\n";
                 }
+                Files.createDirectories(newPath);
+                index.refresh(newPath);
+                return "directory is created\n";
             });
-        }catch (IOException e){
-            sendMessage("wrong command\n", selector, client);
+        } catch (IOException e) {
+            sendMessage("wrong command\n", session);
+            sendMessage(" \n", session);
         }
     }
 
-    private void cat(String command, Selector selector, SocketAddress client)  {
+    private void touch(Session session, String command)  {
         String[] commands = command.split(" ");
-        Path newPath = Path.of(startPath, commands[1]);
         try {
-//            Files.newBufferedReader(newPath).lines().forEach(m -> {
-//                sendMessage(m + System.lineSeparator(), selector, client);
-//            });
-            byte[] bytes = Files.readAllBytes(newPath);
-          sendMessage(new String(bytes,StandardCharsets.UTF_8)+"\n",selector,client);
+            Path newPath = session.resolve(commands[1]);
+            offload(session, () -> {
+                if (index.exists(newPath)) {
+                    return "file is already exists\n";
+                }
+                Files.createFile(newPath);
+                index.refresh(newPath);
+                return "file was created\n";
+            });
         } catch (IOException e) {
-            sendMessage("wrong command\n", selector, client);
+            sendMessage("wrong command\n", session);
+            sendMessage(" \n", session);
         }
     }
 
-    private void mkdir(Selector selector, SocketAddress client, String command)  {
+    private void delete(String command, Session session)  {
         String[] commands = command.split(" ");
-        Path newPath = Path.of(startPath, commands[1]);
-        if (!Files.exists(newPath)) {
-            try {
-                Files.createDirectories(newPath);
-            } catch (IOException e) {
-                sendMessage("wrong command\n", selector, client);
+        try {
+            Path newPath = session.resolve(commands[1]);
+            if (newPath.equals(session.getRoot())) {
+                sendMessage("wrong command\n", session);
+                sendMessage(" \n", session);
+                return;
             }
-            sendMessage("directory is created\n", selector, client);
-        } else {
-            sendMessage("directory is already exists\n", selector, client);
+            TreeOperations.Progress progress = track(session, "rm");
+            offload(session, () -> delete(newPath, progress));
+        } catch (IOException e) {
+            sendMessage("wrong command\n", session);
+            sendMessage(" \n", session);
         }
     }
 
-    private void touch(Selector selector, SocketAddress client, String command)  {
-        String[] commands = command.split(" ");
-        Path newPath = Path.of(startPath, commands[1]);
-        if (!Files.exists(newPath)) {
-            try {
-                Files.createFile(newPath);
-            } catch (IOException e) {
-                sendMessage("wrong command\n", selector, client);
-            }
-            sendMessage("file was created\n", selector, client);
-        } else {
-            sendMessage("file is already exists\n", selector, client);
+    private String delete(Path newPath, TreeOperations.Progress progress) throws IOException {
+        if (!index.exists(newPath)) {
+            return "directory/file doesn't exists\n";
         }
+        if (!index.isDirectory(newPath)) {
+            Files.delete(newPath);
+            index.refresh(newPath);
+            return "file was deleted\n";
+        }
+        try {
+            treeOperations.delete(newPath, progress);
+        } finally {
+            index.refresh(newPath);
+        }
+        if (progress.isCancelled()) {
+            return String.format("rm cancelled, %s\n", progress);
+        }
+        return "directory was deleted\n";
     }
 
-    private void delete(String command, Selector selector, SocketAddress client)  {
+    private String getFileList(Path dir) {
+        List<DirectoryIndex.Entry> files = index.list(dir);
+        if (files == null) {
+            return "directory doesn't exists";
+        }
+        return files.stream()
+                .map(DirectoryIndex.Entry::getName)
+                .collect(Collectors.joining(" "));
+    }
+
+    /**
+     * ls -l [--sort name|size|date] [--page N]: type, size, created, modified, name.
+     * Sizes of directories cover everything under them
+     */
+    private void listLong(String command, Session session) {
         String[] commands = command.split(" ");
-        Path newPath = Path.of(startPath, commands[1]);
-        try{
-            if (Files.exists(newPath)) {
-                if (!Files.isDirectory(newPath)) {
-                    Files.delete(newPath);
-                    sendMessage("file was deleted\n", selector, client);
+        DirectoryIndex.Sort sort = DirectoryIndex.Sort.NAME;
+        int page = 1;
+        try {
+            if (!"-l".equals(commands[1])) {
+                throw new IllegalArgumentException();
+            }
+            for (int i = 2; i < commands.length; i += 2) {
+                if ("--sort".equals(commands[i])) {
+                    sort = DirectoryIndex.Sort.valueOf(commands[i + 1].toUpperCase());
+                } else if ("--page".equals(commands[i])) {
+                    page = Integer.parseInt(commands[i + 1]);
                 } else {
-                    Files.walkFileTree(newPath, new SimpleFileVisitor<Path>() {
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                            Files.delete(file);
-                            return FileVisitResult.CONTINUE;
-                        }
-
-                        @Override
-                        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                            Files.delete(dir);
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-                    sendMessage("directory was deleted\n", selector, client);
+                    throw new IllegalArgumentException();
                 }
-            } else sendMessage("directory/file doesn't exists\n", selector, client);
-        }catch (IOException e){
-            sendMessage("wrong command\n", selector, client);
+            }
+            if (page < 1) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            sendMessage("wrong command\n", session);
+            return;
         }
-    }
 
-    private String getFileList() {
-        return String.join(" ", new File("server").list());
+        Path dir = session.getCurrentDir();
+        DirectoryIndex.Entry current = index.get(dir);
+        List<DirectoryIndex.Entry> entries = index.page(dir, sort, page - 1, LS_PAGE_SIZE);
+        if (current == null || entries == null) {
+            sendMessage("directory doesn't exists\n", session);
+            return;
+        }
+        int count = current.getCount();
+        StringBuilder sb = new StringBuilder();
+        for (DirectoryIndex.Entry entry : entries) {
+            sb.append(String.format("%s %14d %s %s %s\n", entry.isDirectory() ? "d" : "-", entry.getSize(),
+                    LS_DATE.format(Instant.ofEpochMilli(entry.getCreated())),
+                    LS_DATE.format(Instant.ofEpochMilli(entry.getModified())), entry.getName()));
+        }
+        sb.append(String.format("page %d of %d, %d entries\n", page,
+                Math.max(1, (count + LS_PAGE_SIZE - 1) / LS_PAGE_SIZE), count));
+        sendMessage(sb.toString(), session);
     }
 
-    private void sendMessage(String message, Selector selector, SocketAddress client)  {
-	    try{
-            for (SelectionKey key : selector.keys()) {
-                if (key.isValid() && key.channel() instanceof SocketChannel) {
-                    if (((SocketChannel) key.channel()).getRemoteAddress().equals(client)) {
-                        String path = Path.of(startPath).toAbsolutePath() + "\\: \n";
-                        ((SocketChannel) key.channel())
-                                .write(ByteBuffer.wrap(path.getBytes(StandardCharsets.UTF_8)));
-                        ((SocketChannel) key.channel())
-                                .write(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
-                    }
-                }
-            }
-        }catch (IOException e){
-	        e.printStackTrace();
+    /**
+     * stat [name]: answered by the catalog, by the index when the catalog belongs to another server
+     */
+    private void stat(String command, Session session) {
+        String[] commands = command.split(" ");
+        if (commands.length != 2) {
+            sendMessage("wrong command\n", session);
+            return;
         }
+        Path path;
+        try {
+            path = session.resolve(commands[1]);
+        } catch (IOException e) {
+            sendMessage("wrong command\n", session);
+            return;
+        }
+        FileRecord record = index.lookup(root.relativize(path).toString().replace(File.separatorChar, '/'));
+        if (record == null) {
+            sendMessage("file doesn't exists\n", session);
+            return;
+        }
+        sendMessage(String.format("%s %14d %s %s %s %s %s\n", record.isDirectory() ? "d" : "-", record.getSize(),
+                LS_DATE.format(Instant.ofEpochMilli(record.getCreated())),
+                LS_DATE.format(Instant.ofEpochMilli(record.getModified())),
+                record.getHash().isEmpty() ? "-" : record.getHash(),
+                record.getOwner().isEmpty() ? "-" : record.getOwner(), record.getName()), session);
+    }
 
+    private void sendMessage(String message, Session session)  {
+        session.enqueue(encodeMessage(session.getCurrentDir(), message));
     }
 
-	private void handleAccept(SelectionKey key, Selector selector) throws IOException {
-		SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-		channel.configureBlocking(false);
-		System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
+    /**
+     * A reply as it goes to the client: the prompt line, then the message
+     */
+    public static ByteBuffer encodeMessage(Path currentDir, String message) {
+        String path = currentDir + "\\: \n";
+        return ByteBuffer.wrap(path.concat(message).getBytes(StandardCharsets.UTF_8));
+    }
 
-        channel.register(selector, SelectionKey.OP_READ, "some attach");
-        channel.write(ByteBuffer.wrap("Hello user!\n".getBytes(StandardCharsets.UTF_8)));
-        channel.write(ByteBuffer.wrap("Enter --help for support info\n".getBytes(StandardCharsets.UTF_8)));
-        String path = Path.of(startPath).toAbsolutePath() + "\\: ";
-        channel.write(ByteBuffer.wrap(path.getBytes(StandardCharsets.UTF_8)));
+	/**
+	 * A failure here costs the one connection, the boss loop goes on accepting
+	 */
+	private void handleAccept(SelectionKey key) {
+		SocketChannel channel;
+		try {
+			channel = ((ServerSocketChannel) key.channel()).accept();
+		} catch (IOException e) {
+			// out of descriptors and the like, the next select tries again
+			e.printStackTrace();
+			return;
+		}
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			// replies are already coalesced per batch, Nagle would only hold back the last part of them
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
+		} catch (IOException e) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+				// nothing more can be done
+			}
+			return;
+		}
+		Metrics.get().connected();
+
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        Session session = new Session(channel, root, reactor);
+        reactor.execute(() -> {
+            try {
+                session.setKey(reactor.register(channel, session));
+                String greeting = "Hello user!\n" + "Enter --help for support info\n" + session.getCurrentDir() + "\\: ";
+                session.enqueue(ByteBuffer.wrap(greeting.getBytes(StandardCharsets.UTF_8)));
+                session.flush();
+            } catch (IOException e) {
+                close(session);
+            }
+        });
     }
 
 	public static void main(String[] args) throws IOException {
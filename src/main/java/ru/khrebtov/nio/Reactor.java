@@ -0,0 +1,89 @@
+package ru.khrebtov.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Worker selector: owns a share of the connections and runs all their reads, writes
+ * and commands on one thread. Other threads hand work to it with {@link #execute(Runnable)}.
+ */
+public class Reactor implements Runnable {
+	private final NioTelnetServer server;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	// scratch buffer for reads, unfinished lines stay in the session decoder
+	private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+	public Reactor(NioTelnetServer server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Runs the task on the reactor thread
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Must be called on the reactor thread
+	 */
+	public SelectionKey register(SocketChannel channel, Session session) throws IOException {
+		return channel.register(selector, SelectionKey.OP_READ, session);
+	}
+
+	/**
+	 * Closes the sessions of this reactor and ends its thread
+	 */
+	public void shutdown() {
+		execute(() -> {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Session) {
+					server.close((Session) key.attachment());
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				if (!selector.isOpen()) {
+					break;
+				}
+
+				var iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					var key = iterator.next();
+					iterator.remove();
+					if (key.isValid() && key.isWritable()) {
+						server.handleWrite(key);
+					}
+					if (key.isValid() && key.isReadable()) {
+						server.handleRead(key, buffer);
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
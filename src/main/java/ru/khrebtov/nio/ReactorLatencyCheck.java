@@ -0,0 +1,163 @@
+package ru.khrebtov.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a session stays interactive while another session copies a large tree:
+ * p99 of cd during the copy must stay under the limit. Exits with 1 if it does not,
+ * or if the copy is too short to take enough samples.
+ * Run: ReactorLatencyCheck [files] [fileKb] [p99LimitMs]
+ */
+public class ReactorLatencyCheck {
+	private static final int PORT = 5679;
+	private static final int MIN_SAMPLES = 100;
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int fileKb = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		long limitMicros = (args.length > 2 ? Long.parseLong(args[2]) : 50) * 1000;
+
+		Path tree = Path.of("server", "latency-demo");
+		byte[] content = new byte[fileKb * 1024];
+		new Random(1).nextBytes(content);
+		for (int i = 0; i < files; i++) {
+			Path file = tree.resolve("dir" + i % 50).resolve("file" + i);
+			Files.createDirectories(file.getParent());
+			Files.write(file, content);
+		}
+
+		Thread server = new Thread(() -> {
+			try {
+				new NioTelnetServer(PORT, 2, 2);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "latency-check-server");
+		server.start();
+		awaitServer(server);
+
+		List<Long> during = new ArrayList<>();
+		try (Socket interactive = connect(); Socket copier = connect()) {
+			System.out.printf("idle:         %s\n", summary(measure(interactive, 200)));
+
+			long start = System.nanoTime();
+			send(copier, "copy latency-demo latency-demo-copy");
+			while (copier.getInputStream().available() == 0) {
+				during.addAll(measure(interactive, 20));
+			}
+			readReply(copier.getInputStream());
+			System.out.printf("copy took %d ms\n", (System.nanoTime() - start) / 1_000_000);
+			System.out.printf("during copy:  %s\n", summary(during));
+		} finally {
+			server.interrupt();
+			server.join();
+			deleteTree(tree);
+			deleteTree(Path.of("server", "latency-demo-copy"));
+		}
+
+		if (during.size() < MIN_SAMPLES) {
+			System.out.printf("FAIL: %d samples during the copy, at least %d needed - use more files\n",
+					during.size(), MIN_SAMPLES);
+			System.exit(1);
+		}
+		long p99 = percentile(during, 0.99);
+		if (p99 > limitMicros) {
+			System.out.printf("FAIL: p99 %d us during the copy, limit %d us\n", p99, limitMicros);
+			System.exit(1);
+		}
+		System.out.printf("OK: p99 %d us during the copy, limit %d us\n", p99, limitMicros);
+	}
+
+	/**
+	 * A server with a large catalog takes a while to load it before it accepts
+	 */
+	private static void awaitServer(Thread server) throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + 60_000;
+		while (true) {
+			try {
+				// accepted, nothing to say yet
+				new Socket("localhost", PORT).close();
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+					throw new IOException("Server did not start on port " + PORT, e);
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private static Socket connect() throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		// greeting ends with the prompt
+		InputStream in = socket.getInputStream();
+		StringBuilder sb = new StringBuilder();
+		while (!sb.toString().endsWith("\\: ")) {
+			sb.append((char) in.read());
+		}
+		return socket;
+	}
+
+	private static List<Long> measure(Socket socket, int count) throws IOException {
+		List<Long> micros = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long start = System.nanoTime();
+			send(socket, "cd ~");
+			readReply(socket.getInputStream());
+			micros.add((System.nanoTime() - start) / 1000);
+		}
+		return micros;
+	}
+
+	private static void send(Socket socket, String command) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * every command reply ends with the " \n" line
+	 */
+	private static void readReply(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (!sb.toString().endsWith("\\: \n \n")) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Connection closed");
+			}
+			sb.append((char) b);
+		}
+	}
+
+	private static String summary(List<Long> micros) {
+		if (micros.isEmpty()) {
+			return "no samples";
+		}
+		return String.format("%d samples, p50 %d us, p99 %d us, max %d us", micros.size(),
+				percentile(micros, 0.5), percentile(micros, 0.99), percentile(micros, 1));
+	}
+
+	private static long percentile(List<Long> micros, double rank) {
+		List<Long> sorted = new ArrayList<>(micros);
+		Collections.sort(sorted);
+		return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * rank)));
+	}
+
+	private static void deleteTree(Path path) throws IOException {
+		if (Files.exists(path)) {
+			try (var walk = Files.walk(path)) {
+				walk.sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+}
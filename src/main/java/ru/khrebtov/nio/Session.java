@@ -0,0 +1,254 @@
+package ru.khrebtov.nio;
+
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.storage.TreeOperations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * State of one telnet connection, attached to its SelectionKey
+ */
+public class Session {
+	public static final int MAX_LINE_LENGTH = 8 * 1024;
+	// stop reading commands while this much output is queued, resume below the low mark
+	public static final int HIGH_WATERMARK = 256 * 1024;
+	public static final int LOW_WATERMARK = 64 * 1024;
+	private static final int MAX_GATHER = 64;
+	// commands read but not started yet, reading pauses above this count
+	private static final int MAX_PENDING_COMMANDS = 64;
+
+	private final SocketChannel channel;
+	private final Path root;
+	private final Reactor reactor;
+	private final ArrayDeque<String> commands = new ArrayDeque<>();
+	private boolean busy;
+	// copy or rm running for this session on the worker pool
+	private volatile TreeOperations.Progress operation;
+	// latency of the offloaded command, stopped when its reply is back
+	private Metrics.Timer timer;
+	private final LineDecoder decoder = new LineDecoder(MAX_LINE_LENGTH);
+	// ByteBuffer or FileSlice items in sending order
+	private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private long pendingBytes;
+	private SelectionKey key;
+	private Path currentDir;
+
+	public Session(SocketChannel channel, Path root, Reactor reactor) {
+		this.channel = channel;
+		this.root = root;
+		this.reactor = reactor;
+		this.currentDir = root;
+	}
+
+	public void addCommands(List<String> lines) {
+		commands.addAll(lines);
+	}
+
+	/**
+	 * @return next command to run, null while a command is still in progress
+	 */
+	public String pollCommand() {
+		return busy ? null : commands.poll();
+	}
+
+	/**
+	 * Takes the cancel lines queued right behind the command just started, they are meant for it
+	 * @return true if there was one
+	 */
+	public boolean pollCancel() {
+		boolean found = false;
+		while (!commands.isEmpty() && "cancel".equals(commands.peek().trim())) {
+			commands.poll();
+			found = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Path of a command argument relative to the current directory, kept inside the root
+	 * and out of hidden server directories
+	 */
+	public Path resolve(String name) throws IOException {
+		Path path = currentDir.resolve(name).normalize();
+		if (!path.startsWith(root)) {
+			throw new IOException("Path outside of storage: " + name);
+		}
+		// dot entries (.chunks, .uploads) belong to the server
+		for (Path part : root.relativize(path)) {
+			if (part.toString().startsWith(".")) {
+				throw new IOException("Hidden path: " + name);
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Queues bytes for this client, nothing is written until {@link #flush()}
+	 */
+	public void enqueue(ByteBuffer data) {
+		if (data.hasRemaining()) {
+			outbound.add(data);
+			pendingBytes += data.remaining();
+		}
+	}
+
+	/**
+	 * Queues a file region, it is streamed after everything queued before it.
+	 * File bytes are not counted against the watermarks, they are read on demand.
+	 */
+	public void enqueue(FileSlice slice) throws IOException {
+		if (slice.hasRemaining()) {
+			outbound.add(slice);
+		} else {
+			slice.close();
+		}
+	}
+
+	/**
+	 * Writes as much of the queue as the socket accepts with gathering writes,
+	 * then sets OP_WRITE while data is left and drops OP_READ above the high watermark
+	 * @return true if the queue was fully written
+	 */
+	public boolean flush() throws IOException {
+		while (!outbound.isEmpty()) {
+			long written;
+			if (outbound.peek() instanceof FileSlice) {
+				FileSlice slice = (FileSlice) outbound.peek();
+				written = slice.writeTo(channel);
+				if (!slice.hasRemaining()) {
+					outbound.poll();
+				}
+			} else {
+				written = writeBuffers();
+			}
+			if (written == 0) {
+				break;
+			}
+			Metrics.get().bytesOut(written);
+		}
+		updateInterest();
+		return outbound.isEmpty();
+	}
+
+	private long writeBuffers() throws IOException {
+		int count = 0;
+		for (Object item : outbound) {
+			if (!(item instanceof ByteBuffer) || count == MAX_GATHER) {
+				break;
+			}
+			gather[count++] = (ByteBuffer) item;
+		}
+		long written = channel.write(gather, 0, count);
+		pendingBytes -= written;
+		while (outbound.peek() instanceof ByteBuffer && !((ByteBuffer) outbound.peek()).hasRemaining()) {
+			outbound.poll();
+		}
+		Arrays.fill(gather, 0, count, null);
+		return written;
+	}
+
+	/**
+	 * Closes the connection and every file still queued for it
+	 */
+	public void close() throws IOException {
+		for (Object item : outbound) {
+			if (item instanceof FileSlice) {
+				((FileSlice) item).close();
+			}
+		}
+		outbound.clear();
+		if (channel.isOpen()) {
+			Metrics.get().disconnected();
+		}
+		channel.close();
+	}
+
+	private void updateInterest() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		int ops = key.interestOps();
+		if (outbound.isEmpty()) {
+			ops &= ~SelectionKey.OP_WRITE;
+		} else {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		if (pendingBytes > HIGH_WATERMARK || commands.size() > MAX_PENDING_COMMANDS) {
+			ops &= ~SelectionKey.OP_READ;
+		} else if (pendingBytes <= LOW_WATERMARK) {
+			ops |= SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+
+	public long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	public SelectionKey getKey() {
+		return key;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	public Reactor getReactor() {
+		return reactor;
+	}
+
+	/**
+	 * A busy session has a command running on the worker pool, the next commands wait for it
+	 */
+	public TreeOperations.Progress getOperation() {
+		return operation;
+	}
+
+	public void setOperation(TreeOperations.Progress operation) {
+		this.operation = operation;
+	}
+
+	public Metrics.Timer getTimer() {
+		return timer;
+	}
+
+	public void setTimer(Metrics.Timer timer) {
+		this.timer = timer;
+	}
+
+	public boolean isBusy() {
+		return busy;
+	}
+
+	public void setBusy(boolean busy) {
+		this.busy = busy;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	public LineDecoder getDecoder() {
+		return decoder;
+	}
+
+	public Path getCurrentDir() {
+		return currentDir;
+	}
+
+	public void setCurrentDir(Path currentDir) {
+		this.currentDir = currentDir;
+	}
+}
@@ -0,0 +1,85 @@
+package ru.khrebtov.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams of an accepted socket that call its channel directly. Up to JDK 12 the streams of
+ * {@code SocketChannel.socket()} (and {@code Channels.newInputStream}) hold the channel's
+ * blocking lock for a read and for a write, so a thread blocked reading the next request
+ * stalls the thread writing a reply. The channel's own read and write only take separate
+ * locks, a multiplexed connection can read and write at the same time.
+ * A socket without a channel gets its usual streams.
+ */
+final class ChannelStreams {
+	private ChannelStreams() {
+	}
+
+	static InputStream input(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		return channel == null ? socket.getInputStream() : new Input(channel);
+	}
+
+	static OutputStream output(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		return channel == null ? socket.getOutputStream() : new Output(channel);
+	}
+
+	private static final class Input extends InputStream {
+		private final SocketChannel channel;
+
+		Input(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			// a blocking channel reads at least one byte or reports the end
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private static final class Output extends OutputStream {
+		private final SocketChannel channel;
+
+		Output(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
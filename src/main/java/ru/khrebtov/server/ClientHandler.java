@@ -1,99 +1,875 @@
 package ru.khrebtov.server;
 
+import ru.khrebtov.auth.Authenticator;
+import ru.khrebtov.auth.UserStore;
+import ru.khrebtov.catalog.FileRecord;
+import ru.khrebtov.compression.Compression;
+import ru.khrebtov.delta.Delta;
+import ru.khrebtov.delta.Signature;
+import ru.khrebtov.index.DirectoryIndex;
+import ru.khrebtov.index.NameIndex;
+import ru.khrebtov.metrics.MeteredInputStream;
+import ru.khrebtov.metrics.MeteredOutputStream;
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.storage.ChunkStore;
+import ru.khrebtov.storage.Chunker;
+import ru.khrebtov.storage.DedupStorage;
+import ru.khrebtov.storage.FileRange;
+import ru.khrebtov.storage.Manifest;
+
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 public class ClientHandler implements Runnable {
+	public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+	// 4M chunks of 8 KB on average is a 32 GB file
+	public static final int MAX_DEDUP_CHUNKS = 4 * 1024 * 1024;
+	public static final int MAX_SEARCH_LIMIT = 100_000;
+	private static final Path STORAGE = Path.of("server");
+	private static final Path UPLOADS = STORAGE.resolve(".uploads");
+	// the only commands before login
+	private static final Set<String> PUBLIC_COMMANDS = Set.of("login", "resume", "register", "exit");
+	// commands with a latency histogram, unknown words from clients are not timed
+	private static final Set<String> TIMED_COMMANDS = Set.of("login", "resume", "register", "logout",
+			"upload", "download", "download-range", "size", "upload-offset", "upload-chunk", "download-z",
+			"upload-z", "upload-delta", "upload-dedup", "search", "list", "stat");
+	// commands of a logged in user that can run side by side in multiplexed streams
+	static final Set<String> STREAM_COMMANDS = Set.of("upload", "download", "download-range", "size",
+			"upload-offset", "upload-chunk", "download-z", "upload-z", "upload-delta", "upload-dedup",
+			"search", "list", "stat");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	private final Socket socket;
+	private final boolean zeroCopy;
+	private final DedupStorage storage;
+	private final DirectoryIndex index;
+	private final Authenticator authenticator;
+	// files of the logged in user, null before login
+	private Path root;
+	private Path uploads;
+	private String token;
+	private PartialUpload upload;
+	private String uploadName;
+	// the current command came in a req envelope
+	private boolean tagged;
 
 	public ClientHandler(Socket socket) {
+		this(socket, true);
+	}
+
+	/**
+	 * @param socket   accepted client socket
+	 * @param zeroCopy send downloads with FileChannel.transferTo when the socket has a channel
+	 */
+	public ClientHandler(Socket socket, boolean zeroCopy) {
+		this(socket, zeroCopy, null, null);
+	}
+
+	/**
+	 * @param index         shared index of the server directory, search is refused without it
+	 * @param authenticator with it every client logs in and works in its own directory,
+	 *                      without it the whole server directory is open
+	 */
+	public ClientHandler(Socket socket, boolean zeroCopy, DirectoryIndex index, Authenticator authenticator) {
 		this.socket = socket;
+		this.zeroCopy = zeroCopy;
+		this.storage = new DedupStorage(STORAGE);
+		this.index = index;
+		this.authenticator = authenticator;
+		if (authenticator == null) {
+			this.root = STORAGE;
+			this.uploads = UPLOADS;
+		}
+	}
+
+	/**
+	 * Handler of one multiplexed stream: the user of the connection, its own command state.
+	 * Replies go into frames, so no zero-copy, and keep their shape like tagged ones
+	 */
+	private ClientHandler(ClientHandler connection) {
+		this.socket = connection.socket;
+		this.zeroCopy = false;
+		this.storage = connection.storage;
+		this.index = connection.index;
+		this.authenticator = connection.authenticator;
+		this.root = connection.root;
+		this.uploads = connection.uploads;
+		this.token = connection.token;
+		this.tagged = true;
+	}
+
+	ClientHandler forStream() {
+		return new ClientHandler(this);
+	}
+
+	Socket getSocket() {
+		return socket;
 	}
 
 	@Override
 	public void run() {
+		Metrics.get().connected();
 		try (
-				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-				DataInputStream in = new DataInputStream(socket.getInputStream())
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new MeteredOutputStream(ChannelStreams.output(socket)), BUFFER_SIZE));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new MeteredInputStream(ChannelStreams.input(socket)), BUFFER_SIZE))
 		) {
 			while (true) {
 				String command = in.readUTF();
-				if ("upload".equals(command)) {
-					uploading(out, in);
+				// pipelining client: req, request id, then the command as usual.
+				// The reply is the id followed by the usual reply
+				tagged = "req".equals(command);
+				if (tagged) {
+					out.writeInt(in.readInt());
+					command = in.readUTF();
+				}
+				Metrics.Timer timer = TIMED_COMMANDS.contains(command) ? Metrics.get().start(command) : null;
+				if (root == null && !PUBLIC_COMMANDS.contains(command)) {
+					out.writeUTF("AUTH");
+					System.out.printf("Client %s is not logged in, disconnected\n", socket.getInetAddress());
+					break;
+				}
+				if ("login".equals(command)) {
+					login(out, in);
+				}
+				if ("resume".equals(command)) {
+					resume(out, in);
+				}
+				if ("register".equals(command)) {
+					register(out, in);
+				}
+				if ("logout".equals(command)) {
+					logout(out);
 				}
-				if ("download".equals(command)) {
-					downloading(out,in);
+				if (STREAM_COMMANDS.contains(command)) {
+					execute(command, out, in);
+				}
+				if ("mux".equals(command)) {
+					out.writeUTF("OK");
+					out.flush();
+					new Multiplexer(this).run(out, in);
+					disconnected();
+					System.out.printf("Client %s left multiplexed mode, disconnected\n", socket.getInetAddress());
+					break;
 				}
 				if ("exit".equals(command)) {
 					out.writeUTF("DONE");
+					out.flush();
 					disconnected();
 					System.out.printf("Client %s disconnected correctly\n", socket.getInetAddress());
 					break;
 				}
 				System.out.println(command);
 				out.writeUTF(command);
+				// requests already queued by a pipelining client get their replies in one write
+				if (in.available() == 0) {
+					out.flush();
+				}
+				if (timer != null) {
+					timer.stop();
+				}
 			}
-		} catch (SocketException socketException) {
+		} catch (SocketException | EOFException socketException) {
 			System.out.printf("Client %s disconnected\n", socket.getInetAddress());
 		}
 		catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			Metrics.get().disconnected();
+		}
+	}
+
+	/**
+	 * Runs one of {@link #STREAM_COMMANDS}: the file commands, which need a logged in user
+	 * and nothing from the commands before them
+	 */
+	void execute(String command, DataOutputStream out, DataInputStream in) throws IOException {
+		if ("upload".equals(command)) {
+			uploading(out, in);
+		}
+		if ("download".equals(command)) {
+			downloading(out,in);
+		}
+		if ("download-range".equals(command)) {
+			downloadingRange(out, in);
+		}
+		if ("size".equals(command)) {
+			size(out, in);
+		}
+		if ("upload-offset".equals(command)) {
+			uploadOffset(out, in);
+		}
+		if ("upload-chunk".equals(command)) {
+			uploadChunk(out, in);
+		}
+		if ("download-z".equals(command)) {
+			downloadCompressed(out, in);
+		}
+		if ("upload-z".equals(command)) {
+			uploadCompressed(out, in);
+		}
+		if ("upload-delta".equals(command)) {
+			uploadDelta(out, in);
+		}
+		if ("upload-dedup".equals(command)) {
+			uploadDedup(out, in);
+		}
+		if ("search".equals(command)) {
+			search(out, in);
+		}
+		if ("list".equals(command)) {
+			list(out, in);
+		}
+		if ("stat".equals(command)) {
+			stat(out, in);
 		}
 	}
 
 	/**
-	 * Sending file to a client
+	 * Login: name and password. Answers OK and a session token, WRONG,
+	 * or BUSY when the server has no CPU to check the password right now
 	 * @param out DataOutputStream
 	 * @param in DataInputStream
 	 */
-	private void downloading(DataOutputStream out, DataInputStream in) {
+	private void login(DataOutputStream out, DataInputStream in) throws IOException, InterruptedException {
+		String name = in.readUTF();
+		String password = in.readUTF();
+		Authenticator.Result result = authenticator == null ? Authenticator.Result.WRONG
+				: authenticator.login(name, password);
+		out.writeUTF(result.name());
+		if (result == Authenticator.Result.OK) {
+			token = authenticator.createToken(name);
+			out.writeUTF(token);
+			enter(name);
+		}
+	}
+
+	/**
+	 * Login of a reconnecting client with its session token, no password check. Answers OK or EXPIRED
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void resume(DataOutputStream out, DataInputStream in) throws IOException {
+		String presented = in.readUTF();
+		String name = authenticator == null ? null : authenticator.resume(presented);
+		if (name == null) {
+			out.writeUTF("EXPIRED");
+			return;
+		}
+		token = presented;
+		out.writeUTF("OK");
+		enter(name);
+	}
+
+	/**
+	 * New user: name and password. Answers OK, WRONG if the name is taken, not allowed or names
+	 * a directory already in the storage, or BUSY like login. The directory of the user is created at once
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void register(DataOutputStream out, DataInputStream in) throws IOException, InterruptedException {
+		String name = in.readUTF();
+		String password = in.readUTF();
+		Authenticator.Result result;
+		if (authenticator == null || !UserStore.isValidName(name) || Files.exists(STORAGE.resolve(name))) {
+			// the new user would get the files of that directory
+			result = Authenticator.Result.WRONG;
+		} else {
+			result = authenticator.register(name, password);
+			if (result == Authenticator.Result.OK) {
+				Files.createDirectories(STORAGE.resolve(name));
+			}
+		}
+		out.writeUTF(result.name());
+	}
+
+	private void logout(DataOutputStream out) throws IOException {
+		if (authenticator != null) {
+			authenticator.logout(token);
+			root = null;
+			uploads = null;
+			token = null;
+		}
+		out.writeUTF("OK");
+	}
+
+	private void enter(String name) throws IOException {
+		root = STORAGE.resolve(name);
+		uploads = UPLOADS.resolve(name);
+		Files.createDirectories(root);
+		System.out.printf("Client %s logged in as %s\n", socket.getInetAddress(), name);
+	}
+
+	/**
+	 * File of the current user, kept inside the user's directory and out of hidden server directories
+	 */
+	private Path resolve(String name) throws IOException {
+		Path path = root.resolve(name).normalize();
+		if (!path.startsWith(root) || path.equals(root)) {
+			throw new IOException("Path outside of the user directory: " + name);
+		}
+		for (Path part : root.relativize(path)) {
+			if (part.toString().startsWith(".")) {
+				throw new IOException("Hidden path: " + name);
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Sending file to a client: size, bytes and OK. A missing file is answered with a bare WRONG,
+	 * in a req envelope with size -1 and WRONG. A failure once the size is sent is thrown,
+	 * the connection is closed: the client reads file bytes and can not take a WRONG
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void downloading(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		Path file;
+		long size;
 		try {
-			File file = new File("server/" + in.readUTF());
-			if (!file.exists()) {
+			file = resolve(name);
+			if (!Files.isRegularFile(file)) {
 				throw new FileNotFoundException();
 			}
+			size = storage.size(file);
+		} catch (IOException e) {
+			wrong(out);
+			return;
+		}
+		sendRange(out, file, 0, size);
+	}
 
-			long fileLength = file.length();
-			FileInputStream fis = new FileInputStream(file);
+	/**
+	 * Sending part of a file: name, offset, length. Answers like download,
+	 * the length is cut at the end of file
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void downloadingRange(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long offset = in.readLong();
+		long length = in.readLong();
+		Path file;
+		long size;
+		try {
+			file = resolve(name);
+			if (!Files.isRegularFile(file) || offset < 0 || length < 0) {
+				throw new FileNotFoundException();
+			}
+			size = storage.size(file);
+		} catch (IOException e) {
+			wrong(out);
+			return;
+		}
+		offset = Math.min(offset, size);
+		sendRange(out, file, offset, Math.min(length, size - offset));
+	}
 
-			out.writeLong(fileLength);
+	/**
+	 * File size or -1 if there is no such file
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void size(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long size = -1;
+		try {
+			Path file = resolve(name);
+			if (Files.isRegularFile(file)) {
+				size = storage.size(file);
+			}
+		} catch (IOException e) {
+			// no such file for this user
+		}
+		out.writeLong(size);
+	}
+
+	private void sendRange(DataOutputStream out, Path file, long offset, long length) throws IOException {
+		out.writeLong(length);
+
+		SocketChannel channel = socket.getChannel();
+		if (zeroCopy && channel != null) {
+			out.flush();
+			for (FileRange range : storage.ranges(file, offset, length)) {
+				transferFile(range, channel);
+			}
+		} else {
+			copyFile(file, offset, length, out);
+		}
+		out.flush();
+		out.writeUTF("OK");
+	}
+
+	private void wrong(DataOutputStream out) {
+		try {
+			// a bare WRONG in place of the size is what old clients know, tagged replies keep their shape
+			if (tagged) {
+				out.writeLong(-1);
+			}
+			out.writeUTF("WRONG");
+		} catch (IOException ioException) {
+			ioException.printStackTrace();
+		}
+	}
 
-			int read = 0;
+	/**
+	 * Zero-copy sending: the kernel moves file pages straight to the socket
+	 * @param range part of a file or of a chunk
+	 * @param channel SocketChannel in blocking mode
+	 */
+	private void transferFile(FileRange range, SocketChannel channel) throws IOException {
+		try (FileChannel fileChannel = FileChannel.open(range.getPath(), StandardOpenOption.READ)) {
+			long position = range.getPosition();
+			long end = position + range.getLength();
+			while (position < end) {
+				long sent = fileChannel.transferTo(position, end - position, channel);
+				if (sent == 0 && position >= fileChannel.size()) {
+					// the file shrank after its size was sent, the reply can not be completed
+					throw new EOFException("File truncated during transfer: " + range.getPath());
+				}
+				Metrics.get().bytesOut(sent);
+				position += sent;
+			}
+		}
+	}
+
+	private void copyFile(Path file, long offset, long length, DataOutputStream out) throws IOException {
+		try (SeekableByteChannel fileChannel = storage.open(file)) {
+			fileChannel.position(offset);
 			byte[] buffer = new byte[8 * 1024];
-			while ((read = fis.read(buffer)) != -1) {
+			ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+			long left = length;
+			while (left > 0) {
+				wrapper.clear().limit((int) Math.min(buffer.length, left));
+				int read = fileChannel.read(wrapper);
+				if (read < 0) {
+					throw new EOFException();
+				}
 				out.write(buffer, 0, read);
+				left -= read;
 			}
-			out.flush();
-			out.writeUTF("OK");
+		}
+	}
+
+	/**
+	 * Receiving a file: name, size, bytes. A name that is refused or a file that can not be opened
+	 * is answered with WRONG once the body is read and dropped, the next command follows it.
+	 * A failure in the middle of the body is thrown, the connection is closed
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void uploading(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long size = in.readLong();
+		FileOutputStream fos;
+		try {
+			fos = new FileOutputStream(resolve(name).toFile());
 		} catch (IOException e) {
-			try {
-				out.writeUTF("WRONG");
-			} catch (IOException ioException) {
-				ioException.printStackTrace();
+			discard(in, size);
+			out.writeUTF("WRONG");
+			return;
+		}
+		try (fos) {
+			byte[] buffer = new byte[8 * 1024];
+			long left = size;
+			while (left > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if (read < 0) {
+					throw new EOFException();
+				}
+				fos.write(buffer, 0, read);
+				left -= read;
 			}
 		}
+		out.writeUTF("OK");
 	}
 
-	private void uploading(DataOutputStream out, DataInputStream in) throws IOException {
+	private static void discard(DataInputStream in, long length) throws IOException {
+		byte[] buffer = new byte[8 * 1024];
+		long left = length;
+		while (left > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			left -= read;
+		}
+	}
+
+	/**
+	 * Resumable upload, step 1: the client sends file name and size,
+	 * the server answers with the offset it already holds
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void uploadOffset(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long size = in.readLong();
+		Path target = resolve(name);
+		PartialUpload upload = PartialUpload.open(uploads, name, size);
+		if (upload.isComplete()) {
+			upload.complete(target);
+		}
+		this.upload = upload;
+		this.uploadName = name;
+		out.writeLong(upload.getCommitted());
+	}
+
+	/**
+	 * Resumable upload, step 2: name, offset, length, bytes, CRC32C.
+	 * Answers OK, DONE after the last chunk, CRC on a checksum mismatch or WRONG
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void uploadChunk(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long size = in.readLong();
+		long offset = in.readLong();
+		int length = in.readInt();
+		if (length < 0 || length > MAX_CHUNK_SIZE) {
+			throw new IOException("Wrong chunk length: " + length);
+		}
+		byte[] chunk = new byte[length];
+		in.readFully(chunk);
+		int checksum = in.readInt();
+
+		CRC32C crc = new CRC32C();
+		crc.update(chunk, 0, length);
+		if ((int) crc.getValue() != checksum) {
+			out.writeUTF("CRC");
+			return;
+		}
 		try {
-			File file = new File("server/" + in.readUTF()); // read file name
-			if (!file.exists()) {
-				file.createNewFile();
+			if (upload == null || !name.equals(uploadName) || upload.getSize() != size) {
+				upload = PartialUpload.open(uploads, name, size);
+				uploadName = name;
+			}
+			if (upload.getCommitted() != offset) {
+				out.writeUTF("WRONG");
+				return;
+			}
+			upload.append(chunk, length);
+			if (upload.isComplete()) {
+				upload.complete(resolve(name));
+				out.writeUTF("DONE");
+			} else {
+				out.writeUTF("OK");
 			}
+		} catch (IOException e) {
+			out.writeUTF("WRONG");
+		}
+	}
 
-			FileOutputStream fos = new FileOutputStream(file);
-			long size = in.readLong();
-			byte[] buffer = new byte[8 * 1024];
-			for (int i = 0; i < (size + (8 * 1024 - 1)) / (8 * 1024); i++) {
-				int read = in.read(buffer);
-				fos.write(buffer, 0, read);
+	/**
+	 * Delta upload: name and new size. Without a base file the server answers 0 and the client
+	 * falls back to a full upload, otherwise it sends the signature of its copy, rebuilds the new
+	 * version from the delta into a temp file and replaces the file if the SHA-256 matches.
+	 * Answers OK or WRONG
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void uploadDelta(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long size = in.readLong();
+		Path target = resolve(name);
+		if (!Files.isRegularFile(target)) {
+			out.writeInt(0);
+			return;
+		}
+		Signature signature;
+		try (InputStream base = new BufferedInputStream(Channels.newInputStream(storage.open(target)))) {
+			signature = Signature.compute(base, storage.size(target));
+		}
+		signature.write(out);
+		out.flush();
+
+		Path temp = temp(name, ".delta");
+		byte[] digest;
+		try (SeekableByteChannel base = storage.open(target);
+			 OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp))) {
+			digest = Delta.apply(in, base, signature, file, size);
+		} catch (Delta.MismatchException e) {
+			// the rest of the delta and its digest are still coming, the connection goes on
+			Files.deleteIfExists(temp);
+			Delta.skip(in);
+			in.readFully(new byte[Delta.sha256().getDigestLength()]);
+			out.writeUTF("WRONG");
+			return;
+		} catch (IOException e) {
+			// the delta can not be read any further and neither can the connection
+			Files.deleteIfExists(temp);
+			out.writeUTF("WRONG");
+			out.flush();
+			throw e;
+		}
+		byte[] expected = new byte[digest.length];
+		in.readFully(expected);
+		if (!Arrays.equals(digest, expected) || Files.size(temp) != size) {
+			Files.delete(temp);
+			out.writeUTF("WRONG");
+			return;
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		out.writeUTF("OK");
+	}
+
+	/**
+	 * Download with negotiated compression: name and the level the client accepts, 0 - none.
+	 * Answers size (-1 if there is no such file), codec, the data in that codec and OK.
+	 * The server sends raw data when the file type or a sample of it does not compress
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void downloadCompressed(DataOutputStream out, DataInputStream in) throws IOException {
+		Path file = resolve(in.readUTF());
+		int level = in.readInt();
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IOException("Wrong compression level: " + level);
+		}
+		if (!Files.isRegularFile(file)) {
+			out.writeLong(-1);
+			return;
+		}
+		long size = storage.size(file);
+		byte codec = Compression.RAW;
+		if (level != Deflater.NO_COMPRESSION) {
+			try (InputStream head = Channels.newInputStream(storage.open(file))) {
+				if (Compression.worthCompressing(file.getFileName().toString(), head)) {
+					codec = Compression.DEFLATE;
+				}
+			}
+		}
+		out.writeLong(size);
+		out.writeByte(codec);
+		Compression.Stats stats;
+		try (InputStream data = Channels.newInputStream(storage.open(file))) {
+			stats = Compression.send(data, size, codec, level, out);
+		}
+		out.writeUTF("OK");
+		System.out.printf("download-z %s: %s\n", file.getFileName(), stats);
+	}
+
+	/**
+	 * Upload with compression chosen by the client: name, size, codec and the data in that codec.
+	 * The file is replaced once all of it has arrived. Answers OK
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void uploadCompressed(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long size = in.readLong();
+		byte codec = in.readByte();
+		if (size < 0) {
+			throw new IOException("Wrong size: " + size);
+		}
+		Path target = resolve(name);
+		Path temp = temp(name, ".z");
+		Compression.Stats stats;
+		try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp))) {
+			stats = Compression.receive(in, size, codec, file);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		out.writeUTF("OK");
+		System.out.printf("upload-z %s: %s\n", name, stats);
+	}
+
+	/**
+	 * File in the uploads directory for an upload that replaces the target only when complete
+	 */
+	private Path temp(String name, String suffix) throws IOException {
+		Files.createDirectories(uploads);
+		return uploads.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8) + suffix);
+	}
+
+	/**
+	 * Deduplicating upload: name, chunk count and (SHA-256, length) of every chunk.
+	 * The server answers with the indexes of chunks it does not hold, receives only those
+	 * and stores the file as a manifest. Answers OK or WRONG if a chunk does not match its hash
+	 * or is gone before the manifest is written
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void uploadDedup(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		int count = in.readInt();
+		if (count < 0 || count > MAX_DEDUP_CHUNKS) {
+			throw new IOException("Wrong chunk count: " + count);
+		}
+		String[] hashes = new String[count];
+		int[] lengths = new int[count];
+		byte[] hash = new byte[32];
+		for (int i = 0; i < count; i++) {
+			in.readFully(hash);
+			hashes[i] = ChunkStore.hex(hash);
+			lengths[i] = in.readInt();
+			if (lengths[i] <= 0 || lengths[i] > Chunker.MAX_SIZE) {
+				throw new IOException("Wrong chunk length: " + lengths[i]);
+			}
+		}
+
+		Path target = resolve(name);
+		// the user's own store, chunks of other users are neither found nor usable
+		ChunkStore chunks = storage.chunksFor(target);
+		List<Integer> missing = new ArrayList<>();
+		Set<String> requested = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			// a chunk found is pinned, the collector keeps it until the manifest names it
+			if (!chunks.pin(hashes[i]) && requested.add(hashes[i])) {
+				missing.add(i);
+			}
+		}
+		out.writeInt(missing.size());
+		for (int index : missing) {
+			out.writeInt(index);
+		}
+		out.flush();
+
+		byte[] chunk = new byte[Chunker.MAX_SIZE];
+		boolean valid = true;
+		for (int index : missing) {
+			in.readFully(chunk, 0, lengths[index]);
+			if (!hashes[index].equals(chunks.put(chunk, lengths[index]))) {
+				valid = false;
 			}
-			fos.close();
-			out.writeUTF("OK");
-		} catch (Exception e) {
+		}
+		if (!valid) {
+			out.writeUTF("WRONG");
+			return;
+		}
+
+		Manifest manifest = new Manifest();
+		for (int i = 0; i < count; i++) {
+			manifest.add(hashes[i], lengths[i]);
+		}
+		if (!storage.commit(manifest, target)) {
+			// collected by another process that did not see the pin in time, the client uploads again
 			out.writeUTF("WRONG");
+			return;
 		}
+		System.out.printf("Dedup upload %s: %d of %d chunks received\n", name, missing.size(), count);
+		out.writeUTF("OK");
+	}
+
+	/**
+	 * Name search: query and limit. Matching paths are sent one by one as they are found,
+	 * the list ends with an empty string
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void search(DataOutputStream out, DataInputStream in) throws IOException {
+		String query = in.readUTF();
+		int limit = Math.min(in.readInt(), MAX_SEARCH_LIMIT);
+		if (index == null) {
+			out.writeUTF("");
+			return;
+		}
+		// the index keeps every user directory apart, only this user's names are searched
+		String user = root.equals(STORAGE) ? null : STORAGE.relativize(root).toString();
+		String prefix = user == null ? "" : user + "/";
+		IOException[] failure = new IOException[1];
+		NameIndex.ResultConsumer send = path -> {
+			try {
+				out.writeUTF(path.substring(prefix.length()));
+				return true;
+			} catch (IOException e) {
+				failure[0] = e;
+				return false;
+			}
+		};
+		int found = user == null ? index.search(query, limit, send) : index.search(user, query, limit, send);
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		out.writeUTF("");
+		System.out.printf("Search %s: %d found\n", query, found);
+	}
+
+	/**
+	 * Directory listing from the catalog: a directory name, "" for the user directory.
+	 * Answers the number of entries (-1 if there is no such directory), then name, directory flag,
+	 * size and modification time of each
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void list(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		List<FileRecord> records = null;
+		if (index != null) {
+			try {
+				records = index.lookupList(name.isEmpty() ? catalogPath(root) : catalogPath(resolve(name)));
+			} catch (IOException e) {
+				// outside of the user directory, same as missing
+			}
+		}
+		if (records == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(records.size());
+		for (FileRecord record : records) {
+			out.writeUTF(record.getName());
+			out.writeBoolean(record.isDirectory());
+			out.writeLong(record.getSize());
+			out.writeLong(record.getModified());
+		}
+	}
+
+	/**
+	 * File metadata from the catalog: answers false if there is no such file, otherwise true,
+	 * directory flag, size, creation and modification time, content hash ("" if unknown) and owner
+	 * @param out DataOutputStream
+	 * @param in DataInputStream
+	 */
+	private void stat(DataOutputStream out, DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		FileRecord record = null;
+		if (index != null) {
+			try {
+				record = index.lookup(catalogPath(resolve(name)));
+			} catch (IOException e) {
+				// outside of the user directory, same as missing
+			}
+		}
+		out.writeBoolean(record != null);
+		if (record != null) {
+			out.writeBoolean(record.isDirectory());
+			out.writeLong(record.getSize());
+			out.writeLong(record.getCreated());
+			out.writeLong(record.getModified());
+			out.writeUTF(record.getHash());
+			out.writeUTF(record.getOwner());
+		}
+	}
+
+	/**
+	 * Catalog paths are relative to the server directory with / between names
+	 */
+	private static String catalogPath(Path path) {
+		return STORAGE.relativize(path).toString().replace(File.separatorChar, '/');
 	}
 
 	private void disconnected() {
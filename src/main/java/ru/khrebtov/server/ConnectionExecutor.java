@@ -0,0 +1,159 @@
+package ru.khrebtov.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one handler per connection with the chosen threading mode.
+ * Admission is limited separately from threads: above maxConnections a new
+ * connection waits up to the admission timeout and is refused after it.
+ * The waiting is done by an admission thread in arrival order, the accept loop never blocks;
+ * above {@link #MAX_WAITING} waiting connections the next ones are refused at once.
+ */
+public class ConnectionExecutor {
+	public enum Mode {
+		/** fixed pool, connections above the pool size wait in the queue */
+		BOUNDED,
+		/** a pooled thread per connection, idle threads are reused */
+		CACHED,
+		/** a virtual thread per connection (Java 21+), falls back to CACHED */
+		VIRTUAL
+	}
+
+	static final int MAX_WAITING = 1024;
+
+	private final ExecutorService executor;
+	private final Semaphore admission;
+	private final int maxConnections;
+	private final long admissionTimeoutMillis;
+	private final BlockingQueue<Waiting> waiting = new ArrayBlockingQueue<>(MAX_WAITING);
+	private final Thread admitter;
+
+	public ConnectionExecutor(Mode mode, int poolSize, int maxConnections, long admissionTimeoutMillis) {
+		this.executor = createExecutor(mode, poolSize);
+		this.admission = new Semaphore(maxConnections);
+		this.maxConnections = maxConnections;
+		this.admissionTimeoutMillis = admissionTimeoutMillis;
+		admitter = new Thread(this::admitWaiting, "connection-admission");
+		admitter.setDaemon(true);
+		admitter.start();
+	}
+
+	/**
+	 * Reads mode and limits from system properties:
+	 * cloud.server.executor (bounded | cached | virtual), cloud.server.pool-size,
+	 * cloud.server.max-connections, cloud.server.admission-timeout (ms)
+	 */
+	public static ConnectionExecutor fromSystemProperties() {
+		Mode mode = Mode.valueOf(System.getProperty("cloud.server.executor", "cached").toUpperCase());
+		return new ConnectionExecutor(mode,
+				Integer.getInteger("cloud.server.pool-size", 4),
+				Integer.getInteger("cloud.server.max-connections", 10_000),
+				Long.getLong("cloud.server.admission-timeout", 1000));
+	}
+
+	/**
+	 * Runs the handler now if a slot is free, otherwise once one frees up within the admission
+	 * timeout. Returns at once either way.
+	 * @param refused runs instead of the handler if the connection is not admitted,
+	 *                possibly on the admission thread
+	 */
+	public void execute(Runnable handler, Runnable refused) {
+		// a free slot goes to the connections already waiting first
+		if (waiting.isEmpty() && admission.tryAcquire()) {
+			start(handler, refused);
+			return;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(admissionTimeoutMillis);
+		if (admissionTimeoutMillis <= 0 || !waiting.offer(new Waiting(handler, refused, deadline))) {
+			refused.run();
+		}
+	}
+
+	public int getActiveConnections() {
+		return maxConnections - admission.availablePermits();
+	}
+
+	public void shutdown() {
+		admitter.interrupt();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Takes a slot already acquired for the handler
+	 */
+	private void start(Runnable handler, Runnable refused) {
+		try {
+			executor.execute(() -> {
+				try {
+					handler.run();
+				} finally {
+					admission.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shut down
+			admission.release();
+			refused.run();
+		}
+	}
+
+	/**
+	 * Admission thread: waits for a slot for each connection in turn. The deadlines come in
+	 * the order of arrival, so the head of the queue always expires first.
+	 */
+	private void admitWaiting() {
+		try {
+			while (true) {
+				Waiting next = waiting.take();
+				long left = next.deadline - System.nanoTime();
+				if (left > 0 && admission.tryAcquire(left, TimeUnit.NANOSECONDS)) {
+					start(next.handler, next.refused);
+				} else {
+					next.refused.run();
+				}
+			}
+		} catch (InterruptedException e) {
+			// shut down, nobody will admit the rest
+			for (Waiting rest = waiting.poll(); rest != null; rest = waiting.poll()) {
+				rest.refused.run();
+			}
+		}
+	}
+
+	private static ExecutorService createExecutor(Mode mode, int poolSize) {
+		switch (mode) {
+			case BOUNDED:
+				return Executors.newFixedThreadPool(poolSize);
+			case VIRTUAL:
+				try {
+					// looked up reflectively, the project is still compiled for Java 11
+					Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+					return (ExecutorService) factory.invoke(null);
+				} catch (ReflectiveOperationException e) {
+					System.out.println("Virtual threads are not available, using cached pool");
+					return Executors.newCachedThreadPool();
+				}
+			default:
+				return Executors.newCachedThreadPool();
+		}
+	}
+
+	private static class Waiting {
+		private final Runnable handler;
+		private final Runnable refused;
+		private final long deadline;
+
+		Waiting(Runnable handler, Runnable refused, long deadline) {
+			this.handler = handler;
+			this.refused = refused;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package ru.khrebtov.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Download throughput: stream copy vs FileChannel.transferTo over loopback
+ * Run: DownloadBenchmark [sizeMb] [rounds]
+ */
+public class DownloadBenchmark {
+	public static void main(String[] args) throws Exception {
+		int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		String name = "download-benchmark.bin";
+		Path file = Path.of("server", name);
+		Files.createDirectories(file.getParent());
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength((long) sizeMb * 1024 * 1024);
+		}
+
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress("localhost", 0));
+			int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+			// warm up both paths before measuring
+			run(server, port, name, false, 2);
+			run(server, port, name, true, 2);
+
+			double stream = run(server, port, name, false, rounds);
+			double zeroCopy = run(server, port, name, true, rounds);
+			System.out.printf("file %d MB, %d rounds\n", sizeMb, rounds);
+			System.out.printf("stream copy: %.1f MB/s\n", stream);
+			System.out.printf("transferTo:  %.1f MB/s\n", zeroCopy);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static double run(ServerSocketChannel server, int port, String name, boolean zeroCopy, int rounds)
+			throws IOException, InterruptedException {
+		long bytes = 0;
+		long nanos = 0;
+		for (int i = 0; i < rounds; i++) {
+			try (Socket client = new Socket("localhost", port)) {
+				Thread handler = new Thread(acceptOne(server, zeroCopy));
+				handler.start();
+
+				DataOutputStream out = new DataOutputStream(client.getOutputStream());
+				DataInputStream in = new DataInputStream(client.getInputStream());
+				long start = System.nanoTime();
+				out.writeUTF("download");
+				out.writeUTF(name);
+				long size = in.readLong();
+				byte[] buffer = new byte[64 * 1024];
+				long left = size;
+				while (left > 0) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (read < 0) {
+						throw new IOException("Unexpected end of stream");
+					}
+					left -= read;
+				}
+				String status = in.readUTF();
+				in.readUTF(); // command echo
+				nanos += System.nanoTime() - start;
+				bytes += size;
+				if (!"OK".equals(status)) {
+					throw new IOException("Download failed: " + status);
+				}
+
+				out.writeUTF("exit");
+				in.readUTF();
+				handler.join();
+			}
+		}
+		return bytes / 1024.0 / 1024.0 / (nanos / 1_000_000_000.0);
+	}
+
+	private static Runnable acceptOne(ServerSocketChannel server, boolean zeroCopy) {
+		return () -> {
+			try {
+				new ClientHandler(server.accept().socket(), zeroCopy).run();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		};
+	}
+}
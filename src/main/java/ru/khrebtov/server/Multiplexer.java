@@ -0,0 +1,178 @@
+package ru.khrebtov.server;
+
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.mux.FrameWriter;
+import ru.khrebtov.mux.Mux;
+import ru.khrebtov.mux.StreamInput;
+import ru.khrebtov.mux.StreamOutput;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplexed mode of a logged in connection, entered with the mux command (answered OK).
+ * From then on both sides send {@link Mux} frames; a stream carries one of the
+ * {@link ClientHandler#STREAM_COMMANDS} with its usual request and reply, so several uploads,
+ * downloads and small commands run side by side on one connection. Every stream runs on a
+ * thread of its own, the {@link FrameWriter} interleaves the replies frame by frame.
+ * <p>
+ * A client ends its request with END (ERROR cancels it), the server its reply. Above
+ * cloud.server.mux-streams (16) streams at once on the connection, or cloud.server.mux-threads (256)
+ * on the whole server, a new stream is answered with ERROR right away.
+ * END on stream 0 ends the session: the server finishes the running streams,
+ * answers END on stream 0 and closes the connection.
+ */
+class Multiplexer {
+	static final int MAX_STREAMS = Integer.getInteger("cloud.server.mux-streams", 16);
+	// stream threads of all connections, admitted connections times MAX_STREAMS would be unbounded
+	static final int MAX_THREADS = Integer.getInteger("cloud.server.mux-threads", 256);
+	private static final ExecutorService STREAMS = new ThreadPoolExecutor(0, MAX_THREADS,
+			60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+		Thread thread = new Thread(r, "mux-stream");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ClientHandler connection;
+	private final Semaphore slots = new Semaphore(MAX_STREAMS);
+	// the connection thread and every stream until its last frame is queued
+	private final Phaser running = new Phaser(1);
+	// read by the connection thread only
+	private final Map<Integer, StreamInput> inputs = new HashMap<>();
+	// refused streams whose request is still coming
+	private final Set<Integer> refused = new HashSet<>();
+
+	Multiplexer(ClientHandler connection) {
+		this.connection = connection;
+	}
+
+	void run(DataOutputStream out, DataInputStream in) throws IOException {
+		FrameWriter writer = new FrameWriter(out, "mux-writer-" + connection.getSocket().getPort());
+		try {
+			while (true) {
+				int stream = in.readInt();
+				int length = in.readInt();
+				if (length > Mux.FRAME_SIZE || length < Mux.ERROR || length == 0) {
+					throw new IOException("Wrong frame length: " + length);
+				}
+				if (stream == Mux.SESSION) {
+					if (length != Mux.END) {
+						throw new IOException("Wrong session frame: " + length);
+					}
+					break;
+				}
+				byte[] payload = null;
+				if (length > 0) {
+					payload = new byte[length];
+					in.readFully(payload);
+				}
+				StreamInput input = inputs.get(stream);
+				if (input == null) {
+					if (refused.contains(stream)) {
+						if (payload == null) {
+							refused.remove(stream);
+						}
+						continue;
+					}
+					StreamOutput output = writer.open(stream);
+					input = slots.tryAcquire() ? start(output) : null;
+					if (input == null) {
+						output.fail();
+						if (payload != null) {
+							refused.add(stream);
+						}
+						continue;
+					}
+					inputs.put(stream, input);
+				}
+				if (payload != null) {
+					input.offer(payload);
+				} else {
+					inputs.remove(stream);
+					if (length == Mux.END) {
+						input.end();
+					} else {
+						input.fail(new IOException("Cancelled by the client"));
+					}
+				}
+			}
+			// requests cut short by the end of the session end here
+			for (StreamInput input : inputs.values()) {
+				input.end();
+			}
+			running.arriveAndAwaitAdvance();
+			// the last frame, after everything the streams queued
+			writer.close();
+			out.writeInt(Mux.SESSION);
+			out.writeInt(Mux.END);
+			out.flush();
+		} catch (IOException e) {
+			for (StreamInput input : inputs.values()) {
+				input.fail(e);
+			}
+			throw e;
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Runs a stream holding a slot
+	 * @return its input, null if the server has no thread for it (the slot is released)
+	 */
+	private StreamInput start(StreamOutput output) {
+		StreamInput input = new StreamInput();
+		ClientHandler handler = connection.forStream();
+		running.register();
+		try {
+			STREAMS.execute(() -> {
+				boolean done = false;
+				try (input) {
+					DataInputStream in = new DataInputStream(input);
+					DataOutputStream out = new DataOutputStream(output);
+					String command = in.readUTF();
+					if (!ClientHandler.STREAM_COMMANDS.contains(command)) {
+						throw new IOException("Not a stream command: " + command);
+					}
+					Metrics.Timer timer = Metrics.get().start(command);
+					handler.execute(command, out, in);
+					out.writeUTF(command);
+					timer.stop();
+					done = true;
+				} catch (Exception e) {
+					// the stream fails, the connection goes on
+				} finally {
+					// free before the client learns the stream is over, it may open the next one at once
+					slots.release();
+					try {
+						if (done) {
+							output.close();
+						} else {
+							output.fail();
+						}
+					} catch (IOException ignored) {
+						// the connection is gone
+					}
+					running.arriveAndDeregister();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			running.arriveAndDeregister();
+			return null;
+		}
+		return input;
+	}
+}
@@ -0,0 +1,112 @@
+package ru.khrebtov.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Server side record of an upload in progress: the received bytes in {@code <name>.part}
+ * and the expected size / committed offset in {@code <name>.meta}.
+ * Only bytes that passed the checksum and were forced to disk are committed.
+ */
+public class PartialUpload {
+	private final Path data;
+	private final Path meta;
+	private final long size;
+	private long committed;
+
+	private PartialUpload(Path data, Path meta, long size, long committed) {
+		this.data = data;
+		this.meta = meta;
+		this.size = size;
+		this.committed = committed;
+	}
+
+	/**
+	 * Opens the record of this upload, a record for another file size starts from zero
+	 */
+	public static PartialUpload open(Path uploads, String name, long size) throws IOException {
+		Files.createDirectories(uploads);
+		String key = URLEncoder.encode(name, StandardCharsets.UTF_8);
+		Path data = uploads.resolve(key + ".part");
+		Path meta = uploads.resolve(key + ".meta");
+
+		long committed = 0;
+		if (Files.exists(meta)) {
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(meta)) {
+				properties.load(in);
+			}
+			if (Long.parseLong(properties.getProperty("size")) == size) {
+				committed = Long.parseLong(properties.getProperty("committed"));
+			}
+		}
+		// bytes past the committed offset were never acknowledged
+		try (FileChannel channel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			channel.truncate(committed);
+		}
+		PartialUpload upload = new PartialUpload(data, meta, size, committed);
+		upload.saveMeta();
+		return upload;
+	}
+
+	/**
+	 * Appends a verified chunk at the committed offset and commits it
+	 */
+	public void append(byte[] chunk, int length) throws IOException {
+		if (committed + length > size) {
+			throw new IOException("Chunk past the end of file");
+		}
+		try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+			long position = committed;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			channel.force(false);
+		}
+		committed += length;
+		saveMeta();
+	}
+
+	public boolean isComplete() {
+		return committed == size;
+	}
+
+	/**
+	 * Moves the finished data to its place and drops the record
+	 */
+	public void complete(Path target) throws IOException {
+		Files.createDirectories(target.toAbsolutePath().getParent());
+		Files.move(data, target, StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(meta);
+	}
+
+	public long getCommitted() {
+		return committed;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	private void saveMeta() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("size", String.valueOf(size));
+		properties.setProperty("committed", String.valueOf(committed));
+		Path tmp = meta.resolveSibling(meta.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			properties.store(out, null);
+		}
+		Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -1,21 +1,55 @@
 package ru.khrebtov.server;
 
-import java.net.ServerSocket;
+import ru.khrebtov.auth.Authenticator;
+import ru.khrebtov.auth.UserStore;
+import ru.khrebtov.catalog.Catalog;
+import ru.khrebtov.index.DirectoryIndex;
+import ru.khrebtov.metrics.Metrics;
+import ru.khrebtov.storage.DedupStorage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 
 public class Server {
+	private static final int BACKLOG = 1024;
+
 	public Server() {
-		ExecutorService service = Executors.newFixedThreadPool(4);
-		try (ServerSocket server = new ServerSocket(6789)) {
+		this(6789, ConnectionExecutor.fromSystemProperties());
+	}
+
+	public Server(int port, ConnectionExecutor service) {
+		// accepting through a channel gives every socket a SocketChannel for zero-copy downloads
+		try (ServerSocketChannel server = ServerSocketChannel.open();
+			 DirectoryIndex index = new DirectoryIndex(new DedupStorage(Path.of("server")), Catalog.of(Path.of("server")))) {
+			index.start();
+			Metrics.get().startDump();
+			// users log in, each works in server/<user>
+			Authenticator authenticator = new Authenticator(new UserStore(Path.of("server", UserStore.FILE)));
+			server.bind(new InetSocketAddress(port), BACKLOG);
 			while (true) {
-				Socket socket = server.accept();
+				Socket socket = server.accept().socket();
+				// replies are several small writes, Nagle would hold the last one back
+				socket.setTcpNoDelay(true);
 				System.out.println("Client accepted - " + socket.getInetAddress());
-				service.execute(new ClientHandler(socket));
+				service.execute(new ClientHandler(socket, true, index, authenticator), () -> refuse(socket));
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	private void refuse(Socket socket) {
+		System.out.println("Client refused, too many connections - " + socket.getInetAddress());
+		try (socket) {
+			new DataOutputStream(socket.getOutputStream()).writeUTF("BUSY");
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
@@ -0,0 +1,152 @@
+package ru.khrebtov.storage;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Chunks stored once under their SHA-256: {@code <dir>/ab/abcdef...}
+ * <p>
+ * The modification time of a chunk is the last time an upload used it, the garbage collector
+ * keeps chunks used recently even if no manifest names them yet. The store also keeps the
+ * secret manifests are signed with, {@code <dir>/key}.
+ */
+public class ChunkStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final String KEY_FILE = "key";
+    private static final int KEY_LENGTH = 32;
+
+    private final Path dir;
+    private byte[] key;
+
+    public ChunkStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Stores the chunk unless it is already there
+     * @return hash of the chunk
+     */
+    public String put(byte[] data, int length) throws IOException {
+        String hash = hex(sha256(data, length));
+        Path path = path(hash);
+        if (!pin(hash)) {
+            Files.createDirectories(path.getParent());
+            Path tmp = Files.createTempFile(path.getParent(), hash, ".tmp");
+            try {
+                Files.write(tmp, length == data.length ? data : Arrays.copyOf(data, length));
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Marks the chunk as just used, the garbage collector leaves it alone for its grace period
+     * @return false if the chunk is not stored
+     */
+    public boolean pin(String hash) throws IOException {
+        try {
+            Files.setLastModifiedTime(path(hash), FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the hash is not 64 lowercase hex digits,
+     * anything else could name a file outside the store
+     */
+    public Path path(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Not a chunk hash: " + hash);
+        }
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public static boolean isHash(String hash) {
+        return HASH.matcher(hash).matches();
+    }
+
+    /**
+     * Secret of this store, created on first use. The first process to link its key in wins,
+     * the others read that one
+     */
+    synchronized byte[] key() throws IOException {
+        if (key == null) {
+            Path path = dir.resolve(KEY_FILE);
+            if (!Files.exists(path)) {
+                Files.createDirectories(dir);
+                byte[] fresh = new byte[KEY_LENGTH];
+                new SecureRandom().nextBytes(fresh);
+                Path tmp = Files.createTempFile(dir, KEY_FILE, ".tmp");
+                try {
+                    Files.write(tmp, fresh);
+                    Files.createLink(path, tmp);
+                } catch (FileAlreadyExistsException e) {
+                    // created meanwhile
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            byte[] stored = Files.readAllBytes(path);
+            if (stored.length != KEY_LENGTH) {
+                throw new IOException("Damaged chunk store key: " + path);
+            }
+            key = stored;
+        }
+        return key;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public static byte[] sha256(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return null if the text is not an even number of lowercase hex digits
+     */
+    static byte[] unhexOrNull(String hex) {
+        if (hex.length() % 2 != 0 || !hex.chars().allMatch(c -> c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+            return null;
+        }
+        return unhex(hex);
+    }
+
+    public static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,73 @@
+package ru.khrebtov.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a Gear rolling hash: a chunk ends where the hash of the
+ * last bytes matches a mask, so an insert only changes the chunks around it.
+ * Chunks are 2 KB .. 64 KB, about 8 KB on average.
+ */
+public class Chunker {
+    public static final int MIN_SIZE = 2 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+    // 13 bits -> one cut in 8 KB on average
+    private static final long MASK = (1L << 13) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed seed: the client and the server must cut the same way
+        Random random = new Random(0x636c6f7564L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public interface ChunkConsumer {
+        void accept(byte[] data, int length) throws IOException;
+    }
+
+    /**
+     * Reads the stream to its end and hands every chunk to the consumer,
+     * the array is reused between calls
+     */
+    public static void split(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[MAX_SIZE];
+        byte[] chunk = new byte[MAX_SIZE];
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && filled < buffer.length) {
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+            }
+            if (filled == 0) {
+                return;
+            }
+            int cut = cutPoint(buffer, filled);
+            System.arraycopy(buffer, 0, chunk, 0, cut);
+            System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+            filled -= cut;
+            consumer.accept(chunk, cut);
+        }
+    }
+
+    private static int cutPoint(byte[] data, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        long hash = 0;
+        for (int i = MIN_SIZE; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
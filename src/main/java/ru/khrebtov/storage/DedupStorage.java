@@ -0,0 +1,261 @@
+package ru.khrebtov.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Deduplicating storage behind the server directory. A stored file is a {@link Manifest}
+ * in the tree, its chunks live once in the {@code .chunks} of the top-level directory the file
+ * is in, {@code <root>/<user>/.chunks}, or in {@code <root>/.chunks} for a file right in the root.
+ * Chunks are shared inside a user directory only: an upload can not learn that another user
+ * holds some content, nor name chunks it never had. Plain files keep working, every read method
+ * accepts both.
+ */
+public class DedupStorage {
+    public static final String CHUNKS_DIR = ".chunks";
+    // chunks younger than this may belong to an upload whose manifest is not written yet
+    private static final long GC_GRACE_MILLIS = 60 * 60 * 1000;
+
+    private final Path root;
+    // top-level directory (or the root) -> its store
+    private final Map<Path, ChunkStore> stores = new ConcurrentHashMap<>();
+    // read: chunks pinned and the manifest naming them not written yet; write: a chunk is deleted.
+    // Another process on the same root only has the pin times to go by
+    private final ReadWriteLock sweep = new ReentrantReadWriteLock();
+
+    public DedupStorage(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Store the chunks of a file are in
+     */
+    public ChunkStore chunksFor(Path file) {
+        Path relative = root.relativize(file.toAbsolutePath().normalize());
+        if (relative.startsWith("..")) {
+            throw new IllegalArgumentException("Outside of the storage: " + file);
+        }
+        Path dir = relative.getNameCount() > 1 ? root.resolve(relative.getName(0)) : root;
+        return stores.computeIfAbsent(dir, d -> new ChunkStore(d.resolve(CHUNKS_DIR)));
+    }
+
+    /**
+     * Chunks the stream into the store and writes the manifest to target
+     */
+    public Manifest store(InputStream in, Path target) throws IOException {
+        ChunkStore chunks = chunksFor(target);
+        Manifest manifest = new Manifest();
+        sweep.readLock().lock();
+        try {
+            Chunker.split(in, (data, length) -> manifest.add(chunks.put(data, length), length));
+            manifest.write(target, chunks);
+        } finally {
+            sweep.readLock().unlock();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest of chunks that are already in the store. Each chunk is pinned once more
+     * right before, so none can be collected between the check of the uploader and this write
+     * @return false, nothing written, if a chunk is no longer stored
+     */
+    public boolean commit(Manifest manifest, Path target) throws IOException {
+        ChunkStore chunks = chunksFor(target);
+        sweep.readLock().lock();
+        try {
+            for (String hash : manifest.getHashes()) {
+                if (!chunks.pin(hash)) {
+                    return false;
+                }
+            }
+            manifest.write(target, chunks);
+            return true;
+        } finally {
+            sweep.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy without duplicating content: a manifest is copied as is inside one store,
+     * anything else is chunked into the store of the target and the target becomes a manifest
+     */
+    public void copy(Path source, Path target) throws IOException {
+        ChunkStore from = chunksFor(source);
+        Manifest manifest = Manifest.sniff(source, from);
+        if (manifest != null && from == chunksFor(target)) {
+            // signed with the same key, a byte copy stays valid
+            transfer(source, target);
+        } else {
+            try (InputStream in = manifest != null ? Channels.newInputStream(new ManifestChannel(from, manifest))
+                    : Files.newInputStream(source)) {
+                store(in, target);
+            }
+        }
+    }
+
+    /**
+     * Channel to channel copy, the bytes do not pass through the heap
+     */
+    static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long sent = in.transferTo(position, size - position, out);
+                if (sent == 0 && position >= in.size()) {
+                    // the source shrank during the copy, transferTo would return 0 for ever
+                    throw new EOFException("File truncated during copy: " + source);
+                }
+                position += sent;
+            }
+        }
+    }
+
+    /**
+     * Size of the file content, for a manifest - of the file it stands for
+     */
+    public long size(Path file) throws IOException {
+        Manifest manifest = Manifest.sniff(file, chunksFor(file));
+        return manifest != null ? manifest.getSize() : Files.size(file);
+    }
+
+    /**
+     * Files on disk holding [offset, offset + length) of the file content
+     */
+    public List<FileRange> ranges(Path file, long offset, long length) throws IOException {
+        ChunkStore chunks = chunksFor(file);
+        Manifest manifest = Manifest.sniff(file, chunks);
+        if (manifest != null) {
+            return manifest.ranges(chunks, offset, length);
+        }
+        long size = Files.size(file);
+        long from = Math.min(offset, size);
+        return Collections.singletonList(new FileRange(file, from, Math.min(length, size - from)));
+    }
+
+    public SeekableByteChannel open(Path file) throws IOException {
+        ChunkStore chunks = chunksFor(file);
+        Manifest manifest = Manifest.sniff(file, chunks);
+        if (manifest != null) {
+            return new ManifestChannel(chunks, manifest);
+        }
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * Fingerprint of a stored file: SHA-256 of its manifest, which names every chunk of the content.
+     * Null for a plain file, hashing it would mean reading all of it
+     */
+    public String hash(Path file) throws IOException {
+        Manifest manifest = manifest(file);
+        return manifest == null ? null : manifest.getHash();
+    }
+
+    /**
+     * The manifest a file holds, with one read of it: content size and hash together
+     * @return null for a plain file
+     */
+    public Manifest manifest(Path file) throws IOException {
+        return Manifest.sniff(file, chunksFor(file));
+    }
+
+    /**
+     * Mark and sweep: deletes chunks no manifest of their store refers to
+     * @return number of deleted chunks
+     */
+    public int collectGarbage() throws IOException {
+        // store directory -> chunks named by its manifests
+        Map<Path, Set<String>> live = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.getFileName().toString().equals(CHUNKS_DIR)
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                ChunkStore chunks = chunksFor(file);
+                Manifest manifest = Manifest.sniff(file, chunks);
+                if (manifest != null) {
+                    live.computeIfAbsent(chunks.getDir(), d -> new HashSet<>()).addAll(manifest.getHashes());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        List<Path> storeDirs = new ArrayList<>();
+        storeDirs.add(root.resolve(CHUNKS_DIR));
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                storeDirs.add(dir.resolve(CHUNKS_DIR));
+            }
+        }
+        long deadline = System.currentTimeMillis() - GC_GRACE_MILLIS;
+        int deleted = 0;
+        for (Path storeDir : storeDirs) {
+            if (Files.isDirectory(storeDir)) {
+                deleted += sweepStore(storeDir, live.getOrDefault(storeDir, Collections.emptySet()), deadline);
+            }
+        }
+        return deleted;
+    }
+
+    private int sweepStore(Path storeDir, Set<String> live, long deadline) throws IOException {
+        int[] deleted = {0};
+        Files.walkFileTree(storeDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                // the key and anything else that is not a chunk stays, stale temp files go
+                boolean chunk = ChunkStore.isHash(name);
+                if ((chunk ? live.contains(name) : !name.endsWith(".tmp"))
+                        || attrs.lastModifiedTime().toMillis() >= deadline) {
+                    return FileVisitResult.CONTINUE;
+                }
+                sweep.writeLock().lock();
+                try {
+                    // a second look for an upload that pinned the chunk during the walk
+                    if (Files.getLastModifiedTime(file).toMillis() < deadline) {
+                        Files.delete(file);
+                        if (chunk) {
+                            deleted[0]++;
+                        }
+                    }
+                } finally {
+                    sweep.writeLock().unlock();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted[0];
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+}
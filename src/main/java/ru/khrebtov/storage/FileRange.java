@@ -0,0 +1,30 @@
+package ru.khrebtov.storage;
+
+import java.nio.file.Path;
+
+/**
+ * {@code length} bytes of a file on disk starting at {@code position}
+ */
+public class FileRange {
+    private final Path path;
+    private final long position;
+    private final long length;
+
+    public FileRange(Path path, long position, long length) {
+        this.path = path;
+        this.position = position;
+        this.length = length;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,219 @@
+package ru.khrebtov.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A deduplicated file: the list of its chunks. Stored in place of the file as text
+ * <pre>
+ * CLOUD-MANIFEST 1
+ * size 20480
+ * 9f86d081... 8192
+ * 60303ae2... 12288
+ * mac 5d41402a...
+ * </pre>
+ * The last line is an HMAC-SHA256 of the lines above it under the key of the chunk store.
+ * Uploaded bytes are stored as they are, so only the signature tells a manifest from a user
+ * file that merely looks like one: such a file is read as a plain file.
+ */
+public class Manifest {
+    public static final String MAGIC = "CLOUD-MANIFEST 1";
+    private static final byte[] MAGIC_BYTES = (MAGIC + "\n").getBytes(StandardCharsets.US_ASCII);
+    private static final String SIZE = "size ";
+    private static final String MAC = "mac ";
+    // longer than any line of a manifest, a longer line means user data
+    private static final int MAX_LINE = 128;
+
+    private final List<String> hashes = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private long size;
+    // SHA-256 of the manifest as read from a file, null for one being built
+    private String hash;
+
+    public void add(String hash, int length) {
+        hashes.add(hash);
+        lengths.add(length);
+        size += length;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public List<String> getHashes() {
+        return hashes;
+    }
+
+    public int getLength(int index) {
+        return lengths.get(index);
+    }
+
+    /**
+     * SHA-256 of the stored manifest, it names every chunk of the content,
+     * null unless the manifest was read from a file
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Chunk files holding [offset, offset + length) of the file
+     */
+    public List<FileRange> ranges(ChunkStore store, long offset, long length) {
+        List<FileRange> ranges = new ArrayList<>();
+        long chunkStart = 0;
+        long end = Math.min(size, offset + length);
+        for (int i = 0; i < hashes.size() && chunkStart < end; i++) {
+            long chunkEnd = chunkStart + lengths.get(i);
+            if (chunkEnd > offset) {
+                long from = Math.max(offset, chunkStart);
+                long to = Math.min(end, chunkEnd);
+                ranges.add(new FileRange(store.path(hashes.get(i)), from - chunkStart, to - from));
+            }
+            chunkStart = chunkEnd;
+        }
+        return ranges;
+    }
+
+    /**
+     * Writes the manifest signed with the key of the store its chunks are in
+     */
+    public void write(Path path, ChunkStore store) throws IOException {
+        Mac mac = mac(store);
+        Path tmp = path.resolveSibling(path.getFileName() + ".manifest.tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+            writeLine(writer, mac, MAGIC);
+            writeLine(writer, mac, SIZE + size);
+            for (int i = 0; i < hashes.size(); i++) {
+                writeLine(writer, mac, hashes.get(i) + " " + lengths.get(i));
+            }
+            writer.write(MAC + ChunkStore.hex(mac.doFinal()) + "\n");
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLine(BufferedWriter writer, Mac mac, String line) throws IOException {
+        // \n on every platform, the signature covers exactly these bytes
+        String text = line + "\n";
+        mac.update(text.getBytes(StandardCharsets.US_ASCII));
+        writer.write(text);
+    }
+
+    /**
+     * @throws IOException if the file is not a manifest signed by this store
+     */
+    public static Manifest read(Path path, ChunkStore store) throws IOException {
+        Manifest manifest = sniff(path, store);
+        if (manifest == null) {
+            throw new IOException("Not a manifest: " + path);
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads the file if it is a manifest signed by this store. A file that starts like one
+     * and does not parse or verify is user data
+     * @return null for a plain file
+     * @throws IOException if a signed manifest is inconsistent or the file can not be read
+     */
+    public static Manifest sniff(Path path, ChunkStore store) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            if (!Arrays.equals(in.readNBytes(MAGIC_BYTES.length), MAGIC_BYTES)) {
+                return null;
+            }
+            Mac mac = mac(store);
+            mac.update(MAGIC_BYTES);
+            MessageDigest digest = sha256();
+            digest.update(MAGIC_BYTES);
+            String line = readLine(in);
+            long declared = line != null && line.startsWith(SIZE) ? parseLong(line.substring(SIZE.length())) : -1;
+            if (declared < 0) {
+                return null;
+            }
+            mac.update((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            digest.update((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            Manifest manifest = new Manifest();
+            while ((line = readLine(in)) != null && !line.startsWith(MAC)) {
+                int space = line.indexOf(' ');
+                int length = space < 0 ? -1 : (int) Math.min(parseLong(line.substring(space + 1)), Integer.MAX_VALUE);
+                if (length <= 0 || !ChunkStore.isHash(line.substring(0, space))) {
+                    return null;
+                }
+                mac.update((line + "\n").getBytes(StandardCharsets.US_ASCII));
+                digest.update((line + "\n").getBytes(StandardCharsets.US_ASCII));
+                manifest.add(line.substring(0, space), length);
+            }
+            if (line == null || in.read() != -1 || !MessageDigest.isEqual(mac.doFinal(),
+                    ChunkStore.unhexOrNull(line.substring(MAC.length())))) {
+                return null;
+            }
+            if (manifest.size != declared) {
+                throw new IOException("Damaged manifest " + path + ": size " + declared
+                        + ", chunks hold " + manifest.size);
+            }
+            digest.update((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            manifest.hash = ChunkStore.hex(digest.digest());
+            return manifest;
+        }
+    }
+
+    /**
+     * @return the line without \n, null at the end of the stream, after a line that does not end
+     * with \n or one longer than {@link #MAX_LINE}
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0 || line.length() == MAX_LINE) {
+                return null;
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return -1 unless the text is a non-negative decimal number
+     */
+    private static long parseLong(String text) {
+        if (text.isEmpty() || text.length() > 18 || !text.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            return -1;
+        }
+        return Long.parseLong(text);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Mac mac(ChunkStore store) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(store.key(), "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ru.khrebtov.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only channel over the chunks of a manifest, one chunk file is open at a time
+ */
+public class ManifestChannel implements SeekableByteChannel {
+    private final ChunkStore store;
+    private final Manifest manifest;
+    // offsets[i] - position of chunk i in the file
+    private final long[] offsets;
+    private long position;
+    private int openIndex = -1;
+    private FileChannel openChunk;
+    private boolean open = true;
+
+    public ManifestChannel(ChunkStore store, Manifest manifest) {
+        this.store = store;
+        this.manifest = manifest;
+        this.offsets = new long[manifest.getHashes().size()];
+        long offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += manifest.getLength(i);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= manifest.getSize()) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(offsets, position);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        if (index != openIndex) {
+            closeChunk();
+            openChunk = FileChannel.open(store.path(manifest.getHashes().get(index)), StandardOpenOption.READ);
+            openIndex = index;
+        }
+        int read = openChunk.read(dst, position - offsets[index]);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return manifest.getSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        closeChunk();
+    }
+
+    private void closeChunk() throws IOException {
+        if (openChunk != null) {
+            openChunk.close();
+            openChunk = null;
+            openIndex = -1;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ru.khrebtov.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Copies and deletes directory trees on a fork/join pool: every directory is a task,
+ * its subdirectories are forked and its files are handled in place, so subtrees
+ * go in parallel and idle threads steal them. Files are copied through {@link DedupStorage#copy},
+ * plain files from {@link #TRANSFER_THRESHOLD_PROPERTY} bytes up with {@code FileChannel.transferTo}:
+ * chunking would pass every byte through the heap and SHA-256, the copy stays a plain file.
+ * A copy skips dot entries (the chunk store and other server files of the source),
+ * a delete removes everything, the directory could not go otherwise.
+ */
+public class TreeOperations {
+    public static final String PARALLELISM_PROPERTY = "cloud.tree.parallelism";
+    public static final String TRANSFER_THRESHOLD_PROPERTY = "cloud.tree.transfer-threshold";
+    private static final long DEFAULT_TRANSFER_THRESHOLD = 8 * 1024 * 1024;
+    private static final long REPORT_MILLIS = 1000;
+
+    private final DedupStorage storage;
+    private final ForkJoinPool pool;
+    private final long transferThreshold = Long.getLong(TRANSFER_THRESHOLD_PROPERTY, DEFAULT_TRANSFER_THRESHOLD);
+
+    public TreeOperations(DedupStorage storage) {
+        this(storage, Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public TreeOperations(DedupStorage storage, int parallelism) {
+        this.storage = storage;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Copies the source directory into target, blocks until done or cancelled
+     */
+    public void copy(Path source, Path target, Progress progress) throws IOException {
+        run(new CopyTask(source, target, progress), progress);
+    }
+
+    /**
+     * Deletes the directory with everything under it, blocks until done or cancelled
+     */
+    public void delete(Path dir, Progress progress) throws IOException {
+        run(new DeleteTask(dir, progress), progress);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void run(ForkJoinTask<?> task, Progress progress) throws IOException {
+        pool.execute(task);
+        while (true) {
+            try {
+                task.get(REPORT_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                progress.report();
+            } catch (InterruptedException e) {
+                progress.cancel();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * @return size of the copied content
+     */
+    private long copyFile(Path source, Path target) throws IOException {
+        long size = Files.size(source);
+        // sniffing reads the first line only, a manifest this big is rare but stays one
+        if (size >= transferThreshold && storage.manifest(source) == null) {
+            DedupStorage.transfer(source, target);
+            return size;
+        }
+        storage.copy(source, target);
+        return storage.size(target);
+    }
+
+    private class CopyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path source;
+        private final Path target;
+        private final Progress progress;
+
+        CopyTask(Path source, Path target, Progress progress) {
+            this.source = source;
+            this.target = target;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            List<CopyTask> subtasks = new ArrayList<>();
+            try {
+                Files.createDirectories(target);
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                    for (Path entry : entries) {
+                        if (progress.isCancelled()) {
+                            break;
+                        }
+                        if (isHidden(entry)) {
+                            continue;
+                        }
+                        Path copy = target.resolve(entry.getFileName().toString());
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            CopyTask subtask = new CopyTask(entry, copy, progress);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else {
+                            progress.done(copyFile(entry, copy));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                for (CopyTask subtask : subtasks) {
+                    subtask.join();
+                }
+            }
+        }
+    }
+
+    private class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Progress progress;
+
+        DeleteTask(Path dir, Progress progress) {
+            this.dir = dir;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteTask> subtasks = new ArrayList<>();
+            try {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        if (progress.isCancelled()) {
+                            break;
+                        }
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            DeleteTask subtask = new DeleteTask(entry, progress);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else {
+                            long size = Files.size(entry);
+                            Files.delete(entry);
+                            progress.done(size);
+                        }
+                    }
+                }
+                for (DeleteTask subtask : subtasks) {
+                    subtask.join();
+                }
+                subtasks.clear();
+                if (!progress.isCancelled()) {
+                    Files.delete(dir);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                for (DeleteTask subtask : subtasks) {
+                    subtask.join();
+                }
+            }
+        }
+    }
+
+    /**
+     * Counters of a running operation, shared by its tasks. Cancelling stops the tasks
+     * before their next file, what is done stays done
+     */
+    public static class Progress {
+        private final String operation;
+        private final Consumer<Progress> listener;
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private volatile boolean cancelled;
+
+        /**
+         * @param listener gets the progress about once a second while the operation runs
+         */
+        public Progress(String operation, Consumer<Progress> listener) {
+            this.operation = operation;
+            this.listener = listener;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getFiles() {
+            return files.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        private void done(long size) {
+            files.increment();
+            bytes.add(size);
+        }
+
+        private void report() {
+            listener.accept(this);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d files, %d KB", operation, getFiles(), getBytes() / 1024);
+        }
+    }
+}